@@ -0,0 +1,487 @@
+/**
+ * Copyright 2011, Nick Matantsev
+ * Dual-licensed under the MIT or GPL Version 2 licenses.
+ */
+
+package org.fxrm.store.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.StandardLocation;
+
+/**
+ * Annotation processor that validates data interfaces marked with @Store.Precompile and
+ * generates their implementation classes, so that Store.create() does not need to parse
+ * the interface reflectively or go through a dynamic proxy.
+ *
+ * Each generated class also gets its own GraalVM native-image reflection config, since Store.create()
+ * looks them up by name. Keeping the configs separate lets incremental compilation regenerate
+ * just the ones for changed interfaces.
+ *
+ * NOTE: annotations are referred to by name, so this module does not depend on the store library itself.
+ */
+public class StoreProcessor extends AbstractProcessor {
+    private static final String STORE = "org.fxrm.store.Store";
+    private static final String PRECOMPILE = STORE + ".Precompile";
+    private static final String GET = STORE + ".Get";
+    private static final String SET = STORE + ".Set";
+    private static final String FIND = STORE + ".Find";
+    private static final String APPEND = STORE + ".Append";
+    private static final String REMOVE = STORE + ".Remove";
+    private static final String CACHED = STORE + ".Cached";
+    private static final String DEADLINE = STORE + ".Deadline";
+    private static final String INFO = STORE + ".Info";
+    private static final String LIST_CONVERTER = STORE + ".ListConverter";
+    private static final String REFLECT_CONFIG_DIR = "META-INF/native-image/org.fxrm.store/";
+
+    /**
+     * Error in data interface declaration, reported against the offending element.
+     */
+    private static class InvalidInterfaceException extends Exception {
+        private final Element element;
+
+        InvalidInterfaceException(Element element, String message) {
+            super(message);
+            this.element = element;
+        }
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(PRECOMPILE);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for(TypeElement annotation: annotations) {
+            for(Element e: roundEnv.getElementsAnnotatedWith(annotation)) {
+                try {
+                    generate(e);
+                } catch(InvalidInterfaceException ex) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, ex.getMessage(), ex.element);
+                } catch(IOException ex) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "cannot write store implementation: " + ex.getMessage(), e);
+                }
+            }
+        }
+
+        return true;
+    }
+
+    private void generateReflectConfig(String implClass, TypeElement iface) throws IOException {
+        // native-image picks up configs from any subdirectory of META-INF/native-image
+        Writer w = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", REFLECT_CONFIG_DIR + implClass + "/reflect-config.json", iface).openWriter();
+        try {
+            w.write("[\n");
+            w.write("  { \"name\": \"" + implClass + "\", \"methods\": [ { \"name\": \"<init>\", \"parameterTypes\": [] } ] }\n");
+            w.write("]\n");
+        } finally {
+            w.close();
+        }
+    }
+
+    private void generate(Element e) throws InvalidInterfaceException, IOException {
+        if(e.getKind() != ElementKind.INTERFACE)
+            throw new InvalidInterfaceException(e, "interface class required");
+
+        TypeElement iface = (TypeElement)e;
+        if(iface.getModifiers().contains(Modifier.PRIVATE))
+            throw new InvalidInterfaceException(e, "data interface must not be private");
+
+        if(!iface.getTypeParameters().isEmpty())
+            throw new InvalidInterfaceException(e, "data interface must not be generic");
+
+        String pkg = processingEnv.getElementUtils().getPackageOf(iface).getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(iface).toString();
+        String implName = (pkg.isEmpty() ? binaryName : binaryName.substring(pkg.length() + 1)).replace('$', '_') + "_FxrmStore";
+
+        StringBuilder methodSpecs = new StringBuilder();
+        StringBuilder methodBodies = new StringBuilder();
+        Set<String> objectClasses = new HashSet<String>();
+        Map<String, ExecutableElement> listProperties = new LinkedHashMap<String, ExecutableElement>();
+
+        int index = 0;
+        for(ExecutableElement method: ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(iface))) {
+            // skip static methods as well as anything inherited from Object (same as Store.create)
+            if(method.getModifiers().contains(Modifier.STATIC) || method.getEnclosingElement().getKind() != ElementKind.INTERFACE)
+                continue;
+
+            if(!method.getModifiers().contains(Modifier.ABSTRACT))
+                throw new InvalidInterfaceException(method, "data interface method must be abstract");
+
+            if(!method.getTypeParameters().isEmpty())
+                throw new InvalidInterfaceException(method, "data interface method must not be generic");
+
+            ExecutableType type = (ExecutableType)processingEnv.getTypeUtils().asMemberOf((DeclaredType)iface.asType(), method);
+
+            methodSpecs.append(index == 0 ? "" : ",\n").append("        ").append(createSpec(method, type, objectClasses, listProperties)).append(createDeadline(method));
+            methodBodies.append(createBody(method, type, index));
+            index++;
+        }
+
+        String converterSpecs = createConverterSpecs(iface, objectClasses, listProperties);
+        String implClass = pkg.isEmpty() ? implName : pkg + "." + implName;
+
+        Writer w = processingEnv.getFiler().createSourceFile(implClass, iface).openWriter();
+        try {
+            if(!pkg.isEmpty())
+                w.write("package " + pkg + ";\n\n");
+
+            w.write("/**\n * Generated by fxrm-store-processor from " + iface.getQualifiedName() + ", do not edit.\n */\n");
+            w.write("@SuppressWarnings(\"unchecked\")\n");
+            w.write("public final class " + implName + " extends " + STORE + ".Precompiled implements " + iface.getQualifiedName() + " {\n");
+            w.write("    private static final " + STORE + ".MethodSpec[] METHODS = {\n" + methodSpecs + "\n    };\n\n");
+            w.write("    private static final " + STORE + ".ConverterSpec[] CONVERTERS = {\n" + converterSpecs + "\n    };\n\n");
+            w.write("    public " + implName + "() {\n        super(METHODS, CONVERTERS);\n    }\n");
+            w.write(methodBodies.toString());
+            w.write("}\n");
+        } finally {
+            w.close();
+        }
+
+        generateReflectConfig(implClass, iface);
+    }
+
+    private String createSpec(ExecutableElement method, ExecutableType type, Set<String> objectClasses, Map<String, ExecutableElement> listProperties) throws InvalidInterfaceException {
+        final String name = method.getSimpleName().toString();
+        final AnnotationMirror getInfo = findAnnotation(method, GET);
+        final AnnotationMirror setInfo = findAnnotation(method, SET);
+        final AnnotationMirror findInfo = findAnnotation(method, FIND);
+        final AnnotationMirror appendInfo = findAnnotation(method, APPEND);
+        final AnnotationMirror removeInfo = findAnnotation(method, REMOVE);
+        final AnnotationMirror cacheInfo = findAnnotation(method, CACHED);
+        final TypeMirror returnType = type.getReturnType();
+        final List<? extends TypeMirror> params = type.getParameterTypes();
+
+        if(cacheInfo != null && findInfo == null)
+            throw new InvalidInterfaceException(method, "only finder methods can be cached");
+
+        if(getInfo != null) {
+            if(params.size() != 1)
+                throw new InvalidInterfaceException(method, "getter method requires a single parameter");
+
+            objectClasses.add(classLiteral(params.get(0)));
+            return STORE + ".MethodSpec.getter(" + classLiteral(params.get(0)) + ", " + stringLiteral((String)getValue(getInfo, "value")) + ", " + classLiteral(returnType) + ")";
+
+        } else if(setInfo != null) {
+            List<String> fields = getStrings(setInfo, "value");
+
+            if(params.size() < 2)
+                throw new InvalidInterfaceException(method, "setter method requires at least two parameters");
+
+            if(params.size() - 1 != fields.size())
+                throw new InvalidInterfaceException(method, "setter method annotation must specify " + (params.size() - 1) + " fields");
+
+            objectClasses.add(classLiteral(params.get(0)));
+            return STORE + ".MethodSpec.setter(" + classLiteral(params.get(0)) + ", " + stringArray(fields) + ", " + classArray(params.subList(1, params.size())) + ")";
+
+        } else if(appendInfo != null || removeInfo != null) {
+            if(params.size() != 2)
+                throw new InvalidInterfaceException(method, "list item method requires two parameters");
+
+            String property = (String)getValue(appendInfo != null ? appendInfo : removeInfo, "value");
+
+            objectClasses.add(classLiteral(params.get(0)));
+            listProperties.put(propertyKey(params.get(0), property), method);
+            return STORE + ".MethodSpec." + (appendInfo != null ? "append" : "remove") + "(" + classLiteral(params.get(0)) + ", " + stringLiteral(property) + ")";
+
+        } else if(findInfo != null) {
+            List<String> fields = getStrings(findInfo, "by");
+
+            if(params.size() < 1)
+                throw new InvalidInterfaceException(method, "finder method requires at least one parameter");
+
+            if(params.size() != fields.size())
+                throw new InvalidInterfaceException(method, "finder method annotation must specify " + params.size() + " fields");
+
+            // collection arguments match any of their values
+            ArrayList<TypeMirror> valueClasses = new ArrayList<TypeMirror>();
+            StringBuilder anyFields = new StringBuilder();
+            for(int i = 0; i < params.size(); i++) {
+                if(isCollection(params.get(i))) {
+                    List<? extends TypeMirror> typeArgs = ((DeclaredType)params.get(i)).getTypeArguments();
+                    if(typeArgs.size() != 1 || typeArgs.get(0).getKind() != TypeKind.DECLARED)
+                        throw new InvalidInterfaceException(method, "finder collection argument must specify value class");
+
+                    valueClasses.add(typeArgs.get(0));
+                    anyFields.append(".matchAny(").append(stringLiteral(fields.get(i))).append(")");
+                } else {
+                    valueClasses.add(params.get(i));
+                }
+            }
+
+            final TypeMirror explicitClass = (TypeMirror)getValue(findInfo, "object");
+            final boolean hasExplicitClass = !classLiteral(explicitClass).equals("java.lang.Object.class");
+            final TypeMirror objectClass;
+            final String resultType;
+
+            if(isBoxedOrPrimitive(returnType, TypeKind.INT) || isBoxedOrPrimitive(returnType, TypeKind.BOOLEAN)) {
+                // aggregate result needs explicit identity class
+                if(!hasExplicitClass)
+                    throw new InvalidInterfaceException(method, "count or exists finder must specify object class");
+
+                objectClass = explicitClass;
+                resultType = isBoxedOrPrimitive(returnType, TypeKind.INT) ? "COUNT" : "EXISTS";
+            } else if(returnType.getKind() == TypeKind.ARRAY) {
+                objectClass = ((ArrayType)returnType).getComponentType();
+                resultType = "ARRAY";
+            } else if(isCollection(returnType)) {
+                List<? extends TypeMirror> typeArgs = ((DeclaredType)returnType).getTypeArguments();
+                if(typeArgs.size() != 1 || typeArgs.get(0).getKind() != TypeKind.DECLARED)
+                    throw new InvalidInterfaceException(method, "finder method collection must specify identity class");
+
+                objectClass = typeArgs.get(0);
+                resultType = "COLLECTION";
+            } else if(returnType.getKind() == TypeKind.DECLARED) {
+                objectClass = returnType;
+                resultType = "SINGLE";
+            } else {
+                throw new InvalidInterfaceException(method, "finder method must return identity class, array, collection, count or existence flag");
+            }
+
+            if(hasExplicitClass && !classLiteral(explicitClass).equals(classLiteral(objectClass)))
+                throw new InvalidInterfaceException(method, "finder object class does not match return type");
+
+            objectClasses.add(classLiteral(objectClass));
+
+            String cached = "";
+            if(cacheInfo != null) {
+                int cacheSize = (Integer)getValue(cacheInfo, "size");
+                long cacheTtl = (Long)getValue(cacheInfo, "ttl");
+
+                if(cacheSize < 1)
+                    throw new InvalidInterfaceException(method, "finder cache size must be positive");
+
+                cached = ".cached(" + cacheSize + ", " + cacheTtl + "L)";
+            }
+
+            return STORE + ".MethodSpec.finder(" + classLiteral(objectClass) + ", " + stringArray(fields) + ", " + classArray(valueClasses) + ", " + STORE + ".MethodSpec." + resultType + ")" + anyFields + cached;
+
+        } else if(name.startsWith("get") && name.length() > 3) {
+            if(params.size() != 1)
+                throw new InvalidInterfaceException(method, "implied getter method requires a single parameter");
+
+            objectClasses.add(classLiteral(params.get(0)));
+            return STORE + ".MethodSpec.getter(" + classLiteral(params.get(0)) + ", " + stringLiteral(getImpliedPropertyName(method, params.get(0), name.substring(3))) + ", " + classLiteral(returnType) + ")";
+
+        } else if(name.startsWith("set") && name.length() > 3) {
+            if(params.size() != 2)
+                throw new InvalidInterfaceException(method, "implied setter method requires two parameters");
+
+            List<String> fields = Collections.singletonList(getImpliedPropertyName(method, params.get(0), name.substring(3)));
+
+            objectClasses.add(classLiteral(params.get(0)));
+            return STORE + ".MethodSpec.setter(" + classLiteral(params.get(0)) + ", " + stringArray(fields) + ", " + classArray(params.subList(1, params.size())) + ")";
+
+        } else {
+            throw new InvalidInterfaceException(method, "cannot assign action to data interface method");
+        }
+    }
+
+    private String createDeadline(ExecutableElement method) throws InvalidInterfaceException {
+        AnnotationMirror deadlineInfo = findAnnotation(method, DEADLINE);
+        if(deadlineInfo == null)
+            return "";
+
+        long deadline = (Long)getValue(deadlineInfo, "value");
+        if(deadline < 1)
+            throw new InvalidInterfaceException(method, "deadline must be positive");
+
+        return ".deadline(" + deadline + "L)";
+    }
+
+    private String createBody(ExecutableElement method, ExecutableType type, int index) {
+        StringBuilder sb = new StringBuilder();
+        StringBuilder args = new StringBuilder();
+        TypeMirror returnType = type.getReturnType();
+        List<? extends TypeMirror> params = type.getParameterTypes();
+
+        sb.append("\n    public ").append(returnType).append(" ").append(method.getSimpleName()).append("(");
+        for(int i = 0; i < params.size(); i++) {
+            sb.append(i == 0 ? "" : ", ").append(params.get(i)).append(" p").append(i);
+            args.append(i == 0 ? "" : ", ").append("p").append(i);
+        }
+        sb.append(") {\n        ");
+
+        String call = "invoke(" + index + ", new Object[] { " + args + " })";
+        if(returnType.getKind() == TypeKind.VOID) {
+            sb.append(call).append(";\n");
+        } else if(returnType.getKind().isPrimitive()) {
+            String boxed = processingEnv.getTypeUtils().boxedClass((PrimitiveType)returnType).getQualifiedName().toString();
+            sb.append("return (").append(boxed).append(")").append(call).append(";\n");
+        } else {
+            sb.append("return (").append(returnType).append(")").append(call).append(";\n");
+        }
+
+        return sb.append("    }\n").toString();
+    }
+
+    private String createConverterSpecs(TypeElement iface, Set<String> objectClasses, Map<String, ExecutableElement> listProperties) throws InvalidInterfaceException {
+        StringBuilder sb = new StringBuilder();
+        Set<String> listConverted = new HashSet<String>();
+
+        AnnotationMirror info = findAnnotation(iface, INFO);
+        List<? extends AnnotationValue> convs = info == null ? Collections.<AnnotationValue>emptyList() : (List<? extends AnnotationValue>)getValue(info, "converters");
+
+        for(AnnotationValue c: convs) {
+            AnnotationMirror convert = (AnnotationMirror)c.getValue();
+            TypeMirror objectClass = (TypeMirror)getValue(convert, "object");
+            TypeMirror convClass = (TypeMirror)getValue(convert, "convert");
+            String property = (String)getValue(convert, "property");
+
+            if(!objectClasses.contains(classLiteral(objectClass)))
+                throw new InvalidInterfaceException(iface, "converter specified for unknown identity class: " + objectClass);
+
+            TypeElement convElement = (TypeElement)processingEnv.getTypeUtils().asElement(convClass);
+            if(convElement.getModifiers().contains(Modifier.ABSTRACT) || !hasPublicDefaultConstructor(convElement))
+                throw new InvalidInterfaceException(iface, "converter class must be concrete and have a public no-arg constructor: " + convClass);
+
+            // the last converter registered for a property wins, same as in Store.create
+            String key = propertyKey(objectClass, property);
+            if(isSubtype(convClass, LIST_CONVERTER))
+                listConverted.add(key);
+            else
+                listConverted.remove(key);
+
+            sb.append(sb.length() == 0 ? "" : ",\n").append("        new ").append(STORE).append(".ConverterSpec(")
+                .append(classLiteral(objectClass)).append(", ").append(stringLiteral(property)).append(", new ").append(convClass).append("())");
+        }
+
+        for(Map.Entry<String, ExecutableElement> list: listProperties.entrySet()) {
+            if(!listConverted.contains(list.getKey()))
+                throw new InvalidInterfaceException(list.getValue(), "list item method requires a list converter for property: " + list.getKey().substring(list.getKey().indexOf('#') + 1));
+        }
+
+        return sb.toString();
+    }
+
+    private String propertyKey(TypeMirror objectClass, String property) {
+        return classLiteral(objectClass) + "#" + property;
+    }
+
+    private boolean isSubtype(TypeMirror type, String superName) {
+        TypeElement superElement = processingEnv.getElementUtils().getTypeElement(superName);
+        if(superElement == null)
+            return false;
+
+        return processingEnv.getTypeUtils().isAssignable(type, processingEnv.getTypeUtils().erasure(superElement.asType()));
+    }
+
+    private String getImpliedPropertyName(ExecutableElement method, TypeMirror objectClass, String afterVerb) throws InvalidInterfaceException {
+        // if the property name with owning class name remove the class name
+        // e.g. "UserEmail" -> "Email"
+        String classPrefix = processingEnv.getTypeUtils().asElement(objectClass).getSimpleName().toString();
+        if(afterVerb.startsWith(classPrefix))
+            afterVerb = afterVerb.substring(classPrefix.length());
+
+        if(afterVerb.length() < 1)
+            throw new InvalidInterfaceException(method, "cannot determine implied property name");
+
+        // lowercase the first character
+        return Character.toLowerCase(afterVerb.charAt(0)) + afterVerb.substring(1);
+    }
+
+    private boolean hasPublicDefaultConstructor(TypeElement type) {
+        for(ExecutableElement ctor: ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if(ctor.getParameters().isEmpty() && ctor.getModifiers().contains(Modifier.PUBLIC))
+                return true;
+        }
+
+        return false;
+    }
+
+    private boolean isCollection(TypeMirror type) {
+        if(type.getKind() != TypeKind.DECLARED)
+            return false;
+
+        return ((TypeElement)((DeclaredType)type).asElement()).getQualifiedName().contentEquals("java.util.Collection");
+    }
+
+    private boolean isBoxedOrPrimitive(TypeMirror type, TypeKind kind) {
+        if(type.getKind() == kind)
+            return true;
+
+        try {
+            return processingEnv.getTypeUtils().isSameType(processingEnv.getTypeUtils().unboxedType(type), processingEnv.getTypeUtils().getPrimitiveType(kind));
+        } catch(IllegalArgumentException e) {
+            return false; // not a boxed type
+        }
+    }
+
+    private AnnotationMirror findAnnotation(Element e, String name) {
+        for(AnnotationMirror am: e.getAnnotationMirrors()) {
+            if(((TypeElement)am.getAnnotationType().asElement()).getQualifiedName().contentEquals(name))
+                return am;
+        }
+
+        return null;
+    }
+
+    private Object getValue(AnnotationMirror am, String name) {
+        for(Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> kv: processingEnv.getElementUtils().getElementValuesWithDefaults(am).entrySet()) {
+            if(kv.getKey().getSimpleName().contentEquals(name))
+                return kv.getValue().getValue();
+        }
+
+        return null;
+    }
+
+    private List<String> getStrings(AnnotationMirror am, String name) {
+        ArrayList<String> result = new ArrayList<String>();
+        for(AnnotationValue v: (List<? extends AnnotationValue>)getValue(am, name))
+            result.add((String)v.getValue());
+        return result;
+    }
+
+    private String classLiteral(TypeMirror type) {
+        return processingEnv.getTypeUtils().erasure(type) + ".class";
+    }
+
+    private String classArray(List<? extends TypeMirror> types) {
+        StringBuilder sb = new StringBuilder("new Class[] { ");
+        for(int i = 0; i < types.size(); i++)
+            sb.append(i == 0 ? "" : ", ").append(classLiteral(types.get(i)));
+        return sb.append(" }").toString();
+    }
+
+    private String stringArray(List<String> values) {
+        StringBuilder sb = new StringBuilder("new String[] { ");
+        for(int i = 0; i < values.size(); i++)
+            sb.append(i == 0 ? "" : ", ").append(stringLiteral(values.get(i)));
+        return sb.append(" }").toString();
+    }
+
+    private String stringLiteral(String value) {
+        return processingEnv.getElementUtils().getConstantExpression(value);
+    }
+}
@@ -0,0 +1,292 @@
+/**
+ * Copyright 2011, Nick Matantsev
+ * Dual-licensed under the MIT or GPL Version 2 licenses.
+ */
+
+package org.fxrm.store.processor;
+
+import org.fxrm.store.Backend;
+import org.fxrm.store.Store;
+import java.io.File;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+import junit.framework.TestCase;
+
+/**
+ * Compiles sample data interfaces in-process, both with the processor and without it (so that Store.create() parses them
+ * reflectively), and checks the generated classes as well as that both paths accept and reject the same declarations.
+ */
+public class StoreProcessorTest extends TestCase {
+    /**
+     * Map-based backend, just enough to read back what was written.
+     */
+    private static class MapBackend implements Backend, Store.ObjectMapping {
+        private final HashMap<String, Object> values = new HashMap<String, Object>();
+        private int lastId = 0;
+
+        private static class IdentityImpl implements Identity {
+            private final int id;
+
+            private IdentityImpl(int id) {
+                this.id = id;
+            }
+        }
+
+        private static class ColumnImpl implements Column {
+            private final String name;
+
+            private ColumnImpl(String name) {
+                this.name = name;
+            }
+        }
+
+        private static String key(Identity id, Column col) {
+            return ((IdentityImpl)id).id + "." + ((ColumnImpl)col).name;
+        }
+
+        public Object get(Identity id, Column col) {
+            return values.get(key(id, col));
+        }
+
+        public Object[] getAll(Identity[] ids, Column col) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void set(Identity id, Column col, Object value) {
+            values.put(key(id, col), value);
+        }
+
+        public void setAll(Identity[] ids, Column[] cols, Object[] values) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void append(Identity id, Column col, String item) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void remove(Identity id, Column col, String item) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Collection<Identity> find(Column[] cols, Object[] args) {
+            throw new UnsupportedOperationException();
+        }
+
+        public int count(Column[] cols, Object[] args) {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean exists(Column[] cols, Object[] args) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void scan(Column[] cols, ScanHandler handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Column getIdentityColumn(Object objectClass, String propertyName, Class referenceClass) {
+            return new ColumnImpl(propertyName);
+        }
+
+        public Column getSimpleColumn(Object objectClass, String propertyName, Class valueClass) {
+            return new ColumnImpl(propertyName);
+        }
+
+        public Identity createIdentity(Object objectClass) {
+            return new IdentityImpl(++lastId);
+        }
+
+        public Identity intern(Object objectClass, Object externalId) {
+            return new IdentityImpl(Integer.parseInt(externalId.toString()));
+        }
+
+        public Object extern(Identity id) {
+            return ((IdentityImpl)id).id;
+        }
+    }
+
+    private static class Compilation {
+        final File classes;
+        final List<String> errors = new ArrayList<String>();
+
+        Compilation(File classes) {
+            this.classes = classes;
+        }
+
+        ClassLoader getClassLoader() throws Exception {
+            return new URLClassLoader(new URL[] { classes.toURI().toURL() }, StoreProcessorTest.class.getClassLoader());
+        }
+    }
+
+    private final ArrayList<File> dirs = new ArrayList<File>();
+
+    @Override
+    protected void tearDown() throws Exception {
+        for(File dir: dirs)
+            delete(dir);
+    }
+
+    public void testGeneratedStore() throws Exception {
+        Compilation c = compile(sample("",
+                "String getEmail(User u);\n" +
+                "void setEmail(User u, String email);\n" +
+                "@Store.Find(by = \"email\") User findByEmail(String email);\n" +
+                "@Store.Find(by = \"email\", object = User.class) int countByEmail(Collection<String> emails);\n" +
+                "static void helper() { }\n"), true);
+        assertEquals(Collections.<String>emptyList(), c.errors);
+
+        ClassLoader loader = c.getClassLoader();
+        Class iface = loader.loadClass("sample.Model$Data");
+        Class impl = loader.loadClass("sample.Model_Data_FxrmStore");
+        assertTrue(Store.Precompiled.class.isAssignableFrom(impl));
+        assertTrue(iface.isAssignableFrom(impl));
+
+        // Store.create() picks the generated class up
+        MapBackend backend = new MapBackend();
+        Object store = Store.create(iface, backend, backend);
+        assertSame(impl, store.getClass());
+
+        Object user = loader.loadClass("sample.Model$User").newInstance();
+        Method getEmail = iface.getMethod("getEmail", user.getClass());
+        Method setEmail = iface.getMethod("setEmail", user.getClass(), String.class);
+        assertNull(getEmail.invoke(store, user));
+        setEmail.invoke(store, user, "a@example.com");
+        assertEquals("a@example.com", getEmail.invoke(store, user));
+
+        // each generated class gets its own native image config, so incremental builds do not lose entries
+        File config = new File(c.classes, "META-INF/native-image/org.fxrm.store/sample.Model_Data_FxrmStore/reflect-config.json");
+        assertTrue(config.exists());
+        assertTrue(new String(Files.readAllBytes(config.toPath()), "UTF-8").contains("\"name\": \"sample.Model_Data_FxrmStore\""));
+    }
+
+    public void testRulesMatchStoreCreate() throws Exception {
+        assertSameRules("", "String getEmail(User u);\nstatic void helper() { }\n", true);
+        assertSameRules("", "default String getEmail(User u) { return null; }\n", false);
+        assertSameRules("", "String getEmail(User u, User v);\n", false);
+        assertSameRules("", "void frobnicate(User u);\n", false);
+        assertSameRules("", "@Store.Cached String getEmail(User u);\n", false);
+        assertSameRules("", "@Store.Deadline(0) String getEmail(User u);\n", false);
+        assertSameRules("", "@Store.Set({ \"email\", \"name\" }) void setEmail(User u, String email);\n", false);
+        assertSameRules("", "@Store.Find(by = \"email\") int countByEmail(String email);\n", false);
+        assertSameRules("", "@Store.Find(by = \"email\", object = String.class) User findByEmail(String email);\n", false);
+
+        // list item methods need a list converter for their property
+        assertSameRules("", "@Store.Append(\"tags\") void addTag(User u, String tag);\n", false);
+        assertSameRules("@Store.Info(converters = @Store.Convert(object = User.class, property = \"tags\", convert = Plain.class))\n",
+                "@Store.Append(\"tags\") void addTag(User u, String tag);\n", false);
+        assertSameRules("@Store.Info(converters = @Store.Convert(object = User.class, property = \"tags\", convert = Tags.class))\n",
+                "List<User> getTags(User u);\n@Store.Append(\"tags\") void addTag(User u, User tag);\n@Store.Remove(\"tags\") void removeTag(User u, User tag);\n", true);
+        assertSameRules("@Store.Info(converters = @Store.Convert(object = User.class, property = \"tags\", convert = Tags.class))\n",
+                "@Store.Remove(\"name\") void removeName(User u, String name);\nList<User> getTags(User u);\n", false);
+    }
+
+    private void assertSameRules(String annotations, String body, boolean valid) throws Exception {
+        String source = sample(annotations, body);
+
+        Compilation processed = compile(source, true);
+        String processorError = processed.errors.isEmpty() ? null : processed.errors.get(0);
+
+        String runtimeError = null;
+        Compilation plain = compile(source, false);
+        assertEquals(Collections.<String>emptyList(), plain.errors);
+        // the proxy is defined in the context class loader
+        ClassLoader loader = plain.getClassLoader();
+        ClassLoader contextLoader = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(loader);
+        try {
+            MapBackend backend = new MapBackend();
+            Store.create(loader.loadClass("sample.Model$Data"), backend, backend);
+        } catch(Store.ConfigurationException e) {
+            runtimeError = e.getMessage();
+        } finally {
+            Thread.currentThread().setContextClassLoader(contextLoader);
+        }
+
+        assertEquals(body, valid, processorError == null);
+        assertEquals(body, valid, runtimeError == null);
+        if(!valid)
+            assertTrue(runtimeError + " vs " + processorError, runtimeError.startsWith(processorError));
+    }
+
+    private static String sample(String annotations, String body) {
+        return "package sample;\n" +
+                "import org.fxrm.store.Store;\n" +
+                "import org.fxrm.store.util.SimpleObjectListConverter;\n" +
+                "import java.util.Collection;\n" +
+                "import java.util.List;\n" +
+                "public class Model {\n" +
+                "public static class User { }\n" +
+                "public static class Tags extends SimpleObjectListConverter { public Tags() { super(User.class); } }\n" +
+                "public static class Plain implements Store.Converter {\n" +
+                "public Object intern(Object store, String val) { return val; }\n" +
+                "public String extern(Object store, Object val) { return val.toString(); }\n" +
+                "}\n" +
+                "@Store.Precompile\n" + annotations +
+                "public interface Data {\n" + body + "}\n" +
+                "}\n";
+    }
+
+    private Compilation compile(final String source, boolean withProcessor) throws Exception {
+        File dir = Files.createTempDirectory("fxrm-processor").toFile();
+        dirs.add(dir);
+
+        File classes = new File(dir, "classes");
+        File generated = new File(dir, "generated");
+        classes.mkdir();
+        generated.mkdir();
+
+        String classPath = new File(Store.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+
+        ArrayList<String> options = new ArrayList<String>();
+        Collections.addAll(options, "-d", classes.getPath(), "-s", generated.getPath(), "-classpath", classPath);
+        if(!withProcessor)
+            options.add("-proc:none");
+
+        JavaFileObject file = new SimpleJavaFileObject(URI.create("string:///sample/Model.java"), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        JavaCompiler.CompilationTask task = compiler.getTask(null, null, diagnostics, options, null, Collections.singletonList(file));
+        if(withProcessor)
+            task.setProcessors(Collections.singletonList(new StoreProcessor()));
+
+        task.call();
+
+        Compilation c = new Compilation(classes);
+        for(Diagnostic<? extends JavaFileObject> d: diagnostics.getDiagnostics()) {
+            if(d.getKind() == Diagnostic.Kind.ERROR)
+                c.errors.add(d.getMessage(null));
+        }
+
+        return c;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if(children != null) {
+            for(File child: children)
+                delete(child);
+        }
+
+        file.delete();
+    }
+}
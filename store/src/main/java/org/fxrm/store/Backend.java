@@ -0,0 +1,109 @@
+/**
+ * Copyright 2011, Nick Matantsev
+ * Dual-licensed under the MIT or GPL Version 2 licenses.
+ */
+
+package org.fxrm.store;
+
+import java.util.Collection;
+
+/**
+ * Minimal column-based database interface.
+ * NOTE: identity objects are created/retrieved in a database-dependent way (e.g. SQL backends will need a table name and row ID).
+ */
+public interface Backend {
+    public interface Identity {
+    }
+
+    public interface Column {
+    }
+
+    /**
+     * Receives rows of a column scan. Values are in the same order as the scanned columns.
+     */
+    public interface ScanHandler {
+        void row(Identity id, Object[] values) throws Exception;
+    }
+
+    Object get(Identity id, Column col) throws Exception;
+
+    /**
+     * Get column values of several identities in one request, e.g. to warm up a cache.
+     * @return values in the same order as the identities, with null for identities that are not found
+     */
+    default Object[] getAll(Identity[] ids, Column col) throws Exception {
+        Object[] result = new Object[ids.length];
+        for(int i = 0; i < ids.length; i++)
+            result[i] = get(ids[i], col);
+
+        return result;
+    }
+
+    void set(Identity id, Column col, Object value) throws Exception;
+
+    /**
+     * Set column values of several properties in one request, e.g. when replaying queued writes.
+     * Arrays are parallel, and sets of the same property are applied in array order.
+     */
+    default void setAll(Identity[] ids, Column[] cols, Object[] values) throws Exception {
+        for(int i = 0; i < ids.length; i++)
+            set(ids[i], cols[i], values[i]);
+    }
+
+    /**
+     * Append an item to a list column. List columns hold newline-terminated string items
+     * (see SimpleObjectListConverter), and a null column value is treated as an empty list.
+     * The default implementation reads and rewrites the whole list, so it is not atomic.
+     */
+    default void append(Identity id, Column col, String item) throws Exception {
+        String list = (String)get(id, col);
+        set(id, col, (list == null ? "" : list) + item + "\n");
+    }
+
+    /**
+     * Remove the first occurrence of an item from a list column, if any.
+     * The default implementation reads and rewrites the whole list, so it is not atomic.
+     */
+    default void remove(Identity id, Column col, String item) throws Exception {
+        String list = (String)get(id, col);
+        if(list == null)
+            return;
+
+        // prefix the list with a newline so that every item is found as "\n<item>\n"
+        String padded = "\n" + list;
+        int pos = padded.indexOf("\n" + item + "\n");
+        if(pos < 0)
+            return;
+
+        set(id, col, list.substring(0, pos) + list.substring(pos + item.length() + 1));
+    }
+
+    /**
+     * Find identities whose column values match the given arguments. A null argument matches null values,
+     * and a Collection argument matches any of its elements (which may include null).
+     */
+    Collection<Identity> find(Column[] cols, Object[] args) throws Exception;
+
+    /**
+     * Count identities matching the same criteria as find().
+     */
+    default int count(Column[] cols, Object[] args) throws Exception {
+        return find(cols, args).size();
+    }
+
+    /**
+     * Check if any identity matches the same criteria as find().
+     */
+    default boolean exists(Column[] cols, Object[] args) throws Exception {
+        return !find(cols, args).isEmpty();
+    }
+
+    /**
+     * Stream every identity along with its values of the given columns, without holding the whole result in memory.
+     * Columns must belong to the same identity class. There is no default implementation,
+     * since the other methods cannot enumerate identities.
+     */
+    default void scan(Column[] cols, ScanHandler handler) throws Exception {
+        throw new UnsupportedOperationException("backend does not support scans: " + getClass().getName());
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright 2011, Nick Matantsev
+ * Dual-licensed under the MIT or GPL Version 2 licenses.
+ */
+
+package org.fxrm.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Internal class to cache finder results (identity lists, counts or existence flags), keyed by converted finder arguments.
+ * Entries are dropped whenever the store writes to any of the finder's columns.
+ */
+class FinderCache {
+    private static class Entry {
+        private final Object result;
+        private final long created;
+
+        private Entry(Object result, long created) {
+            this.result = result;
+            this.created = created;
+        }
+    }
+
+    private final long ttl;
+    private final LinkedHashMap<List<Object>, Entry> entries;
+
+    // incremented on every invalidation, to avoid caching results of lookups that raced with a write
+    private long generation = 0;
+
+    FinderCache(final int size, long ttl) {
+        this.ttl = ttl;
+        this.entries = new LinkedHashMap<List<Object>, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, Entry> eldest) {
+                return size() > size;
+            }
+        };
+    }
+
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    synchronized Object get(List<Object> key) {
+        Entry e = entries.get(key);
+        if(e == null)
+            return null;
+
+        // external writers are only accounted for by expiry
+        if(ttl > 0 && System.currentTimeMillis() - e.created > ttl) {
+            entries.remove(key);
+            return null;
+        }
+
+        return e.result;
+    }
+
+    synchronized void put(List<Object> key, Object result, long expectedGeneration) {
+        if(generation != expectedGeneration)
+            return;
+
+        entries.put(key, new Entry(result, System.currentTimeMillis()));
+    }
+
+    synchronized void invalidate() {
+        generation++;
+        entries.clear();
+    }
+
+    /**
+     * Lookup of finder caches affected by writes to a given property or by new identities of a given class.
+     * Properties are keyed by object class and name rather than by backend column, since custom object mappings
+     * need not implement column equality.
+     * Populated while the store is being set up, read-only afterwards.
+     */
+    static class Index {
+        private final HashMap<List<Object>, List<FinderCache>> byProperty = new HashMap<List<Object>, List<FinderCache>>();
+        private final HashMap<Class, List<FinderCache>> byClass = new HashMap<Class, List<FinderCache>>();
+
+        void register(FinderCache cache, Class objectClass, String[] properties) {
+            for(String property: properties)
+                add(byProperty, Arrays.<Object>asList(objectClass, property), cache);
+
+            add(byClass, objectClass, cache);
+        }
+
+        void propertyWritten(Class objectClass, String property) {
+            invalidateAll(byProperty.get(Arrays.<Object>asList(objectClass, property)));
+        }
+
+        void identityCreated(Class objectClass) {
+            // new rows have null values that may match finder criteria
+            invalidateAll(byClass.get(objectClass));
+        }
+
+        private static <K> void add(HashMap<K, List<FinderCache>> map, K key, FinderCache cache) {
+            List<FinderCache> list = map.get(key);
+            if(list == null) {
+                list = new ArrayList<FinderCache>();
+                map.put(key, list);
+            }
+
+            if(!list.contains(cache))
+                list.add(cache);
+        }
+
+        private static void invalidateAll(List<FinderCache> caches) {
+            if(caches == null)
+                return;
+
+            for(FinderCache cache: caches)
+                cache.invalidate();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2011, Nick Matantsev
+ * Dual-licensed under the MIT or GPL Version 2 licenses.
+ */
+
+package org.fxrm.store;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Internal class to track domain objects and their corresponding database IDs.
+ * Entity subclasses carry their ID directly, so only the reverse lookup needs bookkeeping for them.
+ */
+class IdentityRegistry {
+    private static final AtomicReferenceFieldUpdater<Store.Entity, Binding> BINDING = AtomicReferenceFieldUpdater.newUpdater(Store.Entity.class, Binding.class, "storeBinding");
+
+    // NOTE: DB identities must be stored using "strong" references
+    private final WeakHashMap<Object, Backend.Identity> objectToId = new WeakHashMap<Object, Backend.Identity>();
+    private final HashMap<Backend.Identity, ObjectReference> idToObject = new HashMap<Backend.Identity, ObjectReference>();
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+    private final Object owner = new Object(); // identifies this registry's bindings without keeping it reachable from entities
+    private final Class objectClass;
+    private final Store.ObjectMapping gen;
+    private final FinderCache.Index caches;
+
+    IdentityRegistry(Class objectClass, Store.ObjectMapping gen, FinderCache.Index caches) {
+        this.objectClass = objectClass;
+        this.gen = gen;
+        this.caches = caches;
+    }
+
+    /**
+     * Reverse lookup entry that remembers its key, so that it can be removed once the object is collected.
+     */
+    private static final class ObjectReference extends WeakReference<Object> {
+        private final Backend.Identity id;
+
+        private ObjectReference(Object obj, Backend.Identity id, ReferenceQueue<Object> queue) {
+            super(obj, queue);
+            this.id = id;
+        }
+    }
+
+    /**
+     * Identity embedded into an entity object, together with the owner token of the registry that holds it.
+     * Entities may outlive their store, so they must not reference the registry itself.
+     */
+    static final class Binding {
+        private final Object owner;
+        private final Backend.Identity id;
+
+        private Binding(Object owner, Backend.Identity id) {
+            this.owner = owner;
+            this.id = id;
+        }
+    }
+
+    Backend.Identity peekId(Object obj) {
+        // embedded identity is read without locking
+        if(obj instanceof Store.Entity) {
+            Binding binding = ((Store.Entity)obj).storeBinding;
+            if(binding == null)
+                return null;
+
+            if(binding.owner == owner)
+                return binding.id;
+        }
+
+        synchronized(this) {
+            return objectToId.get(obj);
+        }
+    }
+
+    Backend.Identity getId(Object obj) throws Exception {
+        Backend.Identity id = peekId(obj);
+        if(id != null)
+            return id;
+
+        synchronized(this) {
+            id = peekId(obj);
+            if(id != null)
+                return id;
+
+            id = gen.createIdentity(objectClass);
+            bind(obj, id);
+        }
+
+        // covers identities created for reference arguments as well as for the written object
+        caches.identityCreated(objectClass);
+        return id;
+    }
+
+    synchronized Object getObject(Backend.Identity id) {
+        WeakReference<Object> objRef = idToObject.get(id);
+        Object obj = objRef == null ? null : objRef.get();
+        if(obj == null) {
+            try {
+                obj = objectClass.newInstance();
+            } catch(Exception e) {
+                throw new RuntimeException("identity object constructor error", e); // TODO: dedicated exception class?
+            }
+
+            bind(obj, id);
+        }
+
+        return obj;
+    }
+
+    private void bind(Object obj, Backend.Identity id) {
+        // entities not yet claimed by another store get the identity embedded, everything else goes into the weak map
+        if(!(obj instanceof Store.Entity) || !BINDING.compareAndSet((Store.Entity)obj, null, new Binding(owner, id)))
+            objectToId.put(obj, id);
+
+        // drop entries of collected objects, e.g. after large scans
+        ObjectReference ref;
+        while((ref = (ObjectReference)collected.poll()) != null) {
+            if(idToObject.get(ref.id) == ref)
+                idToObject.remove(ref.id);
+        }
+
+        idToObject.put(id, new ObjectReference(obj, id, collected));
+    }
+}
@@ -74,5 +74,19 @@ abstract class PropertyConverter {
         public Object extern(Object val) throws Exception {
             return impl.extern(store, val);
         }
+
+        boolean isList() {
+            return impl instanceof Store.ListConverter;
+        }
+
+        String externItem(Object val) throws Exception {
+            String item = ((Store.ListConverter)impl).externItem(store, val);
+
+            // newline would split the item when the list is read back
+            if(item.indexOf('\n') >= 0)
+                throw new Exception("list item must not contain newlines");
+
+            return item;
+        }
     }
 }
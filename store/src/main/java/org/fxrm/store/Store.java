@@ -0,0 +1,1121 @@
+/**
+ * Copyright 2011, Nick Matantsev
+ * Dual-licensed under the MIT or GPL Version 2 licenses.
+ */
+
+package org.fxrm.store;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Simple non-intrusive data store interface. Allows type-safe declaration of simple schema.
+ */
+public class Store {
+    @Retention(RetentionPolicy.RUNTIME)
+    public static @interface Get {
+        String value();
+    }
+
+    @Retention(RetentionPolicy.RUNTIME)
+    public static @interface Set {
+        String[] value();
+    }
+
+    /**
+     * Appends the second argument to a list property without rewriting the whole list.
+     * The property must use a ListConverter.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    public static @interface Append {
+        String value();
+    }
+
+    /**
+     * Removes the first occurrence of the second argument from a list property without rewriting the whole list.
+     * The property must use a ListConverter.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    public static @interface Remove {
+        String value();
+    }
+
+    /**
+     * Finder declaration. Arguments declared as a Collection match any of the contained values.
+     * Finders may return a single identity, an array or collection of identities, the match count
+     * (int) or whether there is any match (boolean); the latter two must specify the identity class.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    public static @interface Find {
+        String[] by();
+        Class object() default Object.class;
+    }
+
+    /**
+     * Enables caching of finder results. Cached results are dropped whenever the same store writes
+     * to any of the finder's columns; the expiry time only matters for writes from elsewhere.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    public static @interface Cached {
+        int size() default 1000;
+        long ttl() default 60000; // milliseconds, 0 to never expire
+    }
+
+    /**
+     * Limits the time a data interface method may take, in milliseconds. Overrides the default
+     * deadline given to create(). Backends that support deadlines (see getRemainingNanos())
+     * abort the call with a TimeoutException when it runs out.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    public static @interface Deadline {
+        long value();
+    }
+
+    /**
+     * Marks a data interface for compile-time processing: the fxrm-store-processor annotation
+     * processor validates the interface and generates its implementation class, which is then
+     * used by create() instead of a reflective proxy.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    public static @interface Precompile {
+    }
+
+    @Retention(RetentionPolicy.RUNTIME)
+    public static @interface Info {
+        Convert[] converters();
+    }
+
+    @Retention(RetentionPolicy.RUNTIME)
+    public static @interface Convert {
+        Class object();
+        String property();
+        Class<? extends Converter> convert();
+    }
+
+    /**
+     * Interface that custom property value converters implement. Arguments
+     * are guaranteed to be non-null, and results must be non-null.
+     * Store instance reference is passed to e.g. allow resolving identities.
+     * A single converter instance is shared by all stores of the same data interface.
+     */
+    public static interface Converter {
+        Object intern(Object store, String val) throws Exception;
+        String extern(Object store, Object val) throws Exception;
+    }
+
+    /**
+     * Converter for list properties that also supports appending or removing single items.
+     * Externed list value must be a concatenation of items, each terminated with a newline.
+     * Item may be null, and its external form must not contain newlines.
+     */
+    public static interface ListConverter extends Converter {
+        String externItem(Object store, Object item) throws Exception;
+    }
+
+    /**
+     * Optional base class for identity classes. The store then keeps the database identity
+     * on the entity object itself instead of looking it up in a weak identity map.
+     * Entity objects shared between several stores are bound to the first store that
+     * registers them and are tracked the usual way by the others.
+     */
+    public static abstract class Entity {
+        volatile IdentityRegistry.Binding storeBinding;
+    }
+
+    /**
+     * Receives identity objects and their property values during a scan.
+     */
+    public static interface ScanHandler<T> {
+        void row(T object, Object[] values) throws Exception;
+    }
+
+    /**
+     * Helps map objects and properties into the column-based backend concepts.
+     */
+    public static interface ObjectMapping {
+        Backend.Column getIdentityColumn(Object objectClass, String propertyName, Class referenceClass);
+        Backend.Column getSimpleColumn(Object objectClass, String propertyName, Class valueClass);
+        Backend.Identity createIdentity(Object objectClass);
+        Backend.Identity intern(Object objectClass, Object externalId);
+        Object extern(Backend.Identity id);
+    }
+
+    public static class ConfigurationException extends RuntimeException {
+        public ConfigurationException(String message) {
+            super(message);
+        }
+    }
+
+    public static class BackendException extends RuntimeException {
+        public BackendException(Throwable cause) {
+            super(cause);
+        }
+
+        public BackendException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * Data interface call did not complete before its deadline.
+     */
+    public static class TimeoutException extends BackendException {
+        public TimeoutException(Throwable cause) {
+            super("deadline exceeded", cause);
+        }
+    }
+
+    /**
+     * Pre-parsed description of a single data interface method. Used by precompiled store implementations.
+     */
+    public static final class MethodSpec {
+        public static final int SINGLE = 1;
+        public static final int ARRAY = 2;
+        public static final int COLLECTION = 3;
+        public static final int COUNT = 4;
+        public static final int EXISTS = 5;
+
+        private final StoreMethodInfo info;
+
+        private MethodSpec(StoreMethodInfo info) {
+            this.info = info;
+        }
+
+        public static MethodSpec getter(Class objectClass, String property, Class valueClass) {
+            return new MethodSpec(new StoreMethodInfo(objectClass, new String[] { property }, new Class[] { valueClass }, 1, 0));
+        }
+
+        public static MethodSpec setter(Class objectClass, String[] properties, Class[] valueClasses) {
+            return new MethodSpec(new StoreMethodInfo(objectClass, properties, valueClasses, 2, 0));
+        }
+
+        public static MethodSpec append(Class objectClass, String property) {
+            return new MethodSpec(new StoreMethodInfo(objectClass, new String[] { property }, new Class[] { String.class }, 4, 0));
+        }
+
+        public static MethodSpec remove(Class objectClass, String property) {
+            return new MethodSpec(new StoreMethodInfo(objectClass, new String[] { property }, new Class[] { String.class }, 5, 0));
+        }
+
+        public static MethodSpec finder(Class objectClass, String[] properties, Class[] valueClasses, int resultType) {
+            return new MethodSpec(new StoreMethodInfo(objectClass, properties, valueClasses, 3, resultType));
+        }
+
+        /**
+         * Enable finder result caching.
+         */
+        public MethodSpec cached(int cacheSize, long cacheTtl) {
+            info.cacheSize = cacheSize;
+            info.cacheTtl = cacheTtl;
+            return this;
+        }
+
+        /**
+         * Mark a finder property as matching any value of a collection argument. The corresponding
+         * value class is that of the collection elements.
+         */
+        public MethodSpec matchAny(String property) {
+            info.anyFields.add(property);
+            return this;
+        }
+
+        /**
+         * Set the method's own deadline in milliseconds.
+         */
+        public MethodSpec deadline(long millis) {
+            info.deadline = millis;
+            return this;
+        }
+    }
+
+    /**
+     * Custom property value converter registration. Used by precompiled store implementations.
+     */
+    public static final class ConverterSpec {
+        private final Class objectClass;
+        private final String property;
+        private final Converter impl;
+
+        public ConverterSpec(Class objectClass, String property, Converter impl) {
+            this.objectClass = objectClass;
+            this.property = property;
+            this.impl = impl;
+        }
+    }
+
+    /**
+     * Base class for data interface implementations generated at compile time.
+     * Each generated method delegates to invoke() with its index in the method spec list.
+     */
+    public static abstract class Precompiled {
+        private static final AtomicReferenceFieldUpdater<Precompiled, StoreCore> CORE = AtomicReferenceFieldUpdater.newUpdater(Precompiled.class, StoreCore.class, "core");
+
+        private final MethodSpec[] methods;
+        private final ConverterSpec[] converters;
+        private volatile StoreCore core; // set once when bound, see create()
+
+        protected Precompiled(MethodSpec[] methods, ConverterSpec[] converters) {
+            this.methods = methods;
+            this.converters = converters;
+        }
+
+        protected final Object invoke(int index, Object[] args) {
+            StoreCore core = this.core;
+            if(core == null)
+                throw new ConfigurationException("precompiled store instance is not bound - pass it to Store.create() first");
+
+            return core.invoke(index, args);
+        }
+
+        private void bind(StoreCore core) {
+            if(!CORE.compareAndSet(this, null, core))
+                throw new ConfigurationException("precompiled store instance is already bound");
+        }
+
+        private StoreMethodInfo[] getInfo() {
+            StoreMethodInfo[] info = new StoreMethodInfo[methods.length];
+            for(int i = 0; i < info.length; i++)
+                info[i] = methods[i].info;
+            return info;
+        }
+    }
+
+    private static interface StoreMethodImplementation {
+        Object invoke(Object[] args) throws Exception;
+    }
+
+    /**
+     * Backend column and value converter resolved for a single identity class property.
+     */
+    private static class PropertyBinding {
+        private final Backend.Column column;
+        private final PropertyConverter conv;
+
+        private PropertyBinding(Backend.Column column, PropertyConverter conv) {
+            this.column = column;
+            this.conv = conv;
+        }
+    }
+
+    private static interface FinderImplementation {
+        Object invoke(Object[] args) throws Exception;
+    }
+
+    private static class StoreMethodInfo {
+        private final Class objectClass;
+        private final LinkedHashMap<String, Class> fields = new LinkedHashMap<String, Class>();
+
+        private final int type; // 1/2/3/4/5 = getter/setter/finder/append/remove
+        private final int finderType; // 1/2/3/4/5 = single/array/collection/count/exists
+        private final HashSet<String> anyFields = new HashSet<String>(); // finder fields matched against collections
+
+        private int cacheSize = 0; // finder cache is disabled unless positive
+        private long cacheTtl = 0;
+
+        private long deadline = 0; // milliseconds, no deadline of its own unless positive
+
+        private StoreMethodInfo(Class objectClass, String[] fieldNames, Class[] fieldClasses, int type, int finderType) {
+            if(fieldNames.length != fieldClasses.length)
+                throw new ConfigurationException("field names and classes do not match");
+
+            this.objectClass = objectClass;
+            for(int i = 0; i < fieldNames.length; i++)
+                fields.put(fieldNames[i], fieldClasses[i]);
+            this.type = type;
+            this.finderType = finderType;
+        }
+
+        private StoreMethodInfo(Method method) {
+            final String name = method.getName();
+            final Get getInfo = method.getAnnotation(Get.class);
+            final Set setInfo = method.getAnnotation(Set.class);
+            final Find findInfo = method.getAnnotation(Find.class);
+            final Append appendInfo = method.getAnnotation(Append.class);
+            final Remove removeInfo = method.getAnnotation(Remove.class);
+            final Class returnType = method.getReturnType();
+            final Class[] params = method.getParameterTypes();
+
+            if(getInfo != null) {
+                if(params.length != 1)
+                    throw new ConfigurationException("getter method requires a single parameter: " + method);
+
+                objectClass = params[0];
+                fields.put(getInfo.value(), returnType);
+                type = 1;
+                finderType = 0;
+
+            } else if(setInfo != null) {
+                if(params.length < 2)
+                    throw new ConfigurationException("setter method requires at least two parameters: " + method);
+
+                if(params.length - 1 != setInfo.value().length)
+                    throw new ConfigurationException("setter method annotation must specify " + (params.length - 1) + " fields: " + method);
+
+                objectClass = params[0];
+                for(int i = 1; i < params.length; i++)
+                    fields.put(setInfo.value()[i - 1], params[i]);
+                type = 2;
+                finderType = 0;
+
+            } else if(appendInfo != null || removeInfo != null) {
+                if(params.length != 2)
+                    throw new ConfigurationException("list item method requires two parameters: " + method);
+
+                // list properties are stored in converted string form
+                objectClass = params[0];
+                fields.put(appendInfo != null ? appendInfo.value() : removeInfo.value(), String.class);
+                type = appendInfo != null ? 4 : 5;
+                finderType = 0;
+
+            } else if(findInfo != null) {
+                if(params.length < 1)
+                    throw new ConfigurationException("finder method requires at least one parameter: " + method);
+
+                if(params.length != findInfo.by().length)
+                    throw new ConfigurationException("finder method annotation must specify " + params.length + " fields: " + method);
+
+                for(int i = 0; i < params.length; i++) {
+                    if(params[i] == Collection.class) {
+                        // determine value type from collection's generic parameter
+                        Type paramType = method.getGenericParameterTypes()[i];
+                        if(!(paramType instanceof ParameterizedType) || !(((ParameterizedType)paramType).getActualTypeArguments()[0] instanceof Class))
+                            throw new ConfigurationException("finder collection argument must specify value class: " + method);
+
+                        fields.put(findInfo.by()[i], (Class)((ParameterizedType)paramType).getActualTypeArguments()[0]);
+                        anyFields.add(findInfo.by()[i]);
+                    } else {
+                        fields.put(findInfo.by()[i], params[i]);
+                    }
+                }
+
+                type = 3;
+
+                if(returnType == int.class || returnType == Integer.class || returnType == boolean.class || returnType == Boolean.class) {
+                    // aggregate result needs explicit identity class
+                    if(findInfo.object() == Object.class)
+                        throw new ConfigurationException("count or exists finder must specify object class: " + method);
+
+                    objectClass = findInfo.object();
+                    finderType = (returnType == int.class || returnType == Integer.class) ? 4 : 5;
+                } else if(returnType.isArray()) {
+                    // convert finder output into an array of appropriate type
+                    objectClass = returnType.getComponentType();
+                    finderType = 2;
+                } else if(returnType == Collection.class) {
+                    // determine identity type from collection's generic parameter
+                    // TODO: explicitly detect other generic return types and throw appropriate error
+                    objectClass = (Class)((ParameterizedType)method.getGenericReturnType()).getActualTypeArguments()[0];
+                    finderType = 3;
+                } else {
+                    // return first item in finder output or null
+                    objectClass = returnType;
+                    finderType = 1;
+                }
+
+                if(findInfo.object() != Object.class && findInfo.object() != objectClass)
+                    throw new ConfigurationException("finder object class does not match return type: " + method);
+
+                final Cached cacheInfo = method.getAnnotation(Cached.class);
+                if(cacheInfo != null) {
+                    if(cacheInfo.size() < 1)
+                        throw new ConfigurationException("finder cache size must be positive: " + method);
+
+                    cacheSize = cacheInfo.size();
+                    cacheTtl = cacheInfo.ttl();
+                }
+            } else if(name.startsWith("get") && name.length() > 3) {
+                if(params.length != 1)
+                    throw new ConfigurationException("implied getter method requires a single parameter: " + method);
+
+                objectClass = params[0];
+                fields.put(getImpliedPropertyName(objectClass, name.substring(3)), returnType);
+                type = 1;
+                finderType = 0;
+            } else if(name.startsWith("set") && name.length() > 3) {
+                if(params.length != 2)
+                    throw new ConfigurationException("implied setter method requires two parameters: " + method);
+
+                objectClass = params[0];
+                fields.put(getImpliedPropertyName(objectClass, name.substring(3)), params[1]);
+                type = 2;
+                finderType = 0;
+            } else {
+                throw new ConfigurationException("cannot assign action to data interface method: " + method);
+            }
+
+            if(type != 3 && method.getAnnotation(Cached.class) != null)
+                throw new ConfigurationException("only finder methods can be cached: " + method);
+
+            final Deadline deadlineInfo = method.getAnnotation(Deadline.class);
+            if(deadlineInfo != null) {
+                if(deadlineInfo.value() < 1)
+                    throw new ConfigurationException("deadline must be positive: " + method);
+
+                deadline = deadlineInfo.value();
+            }
+        }
+
+        private String getImpliedPropertyName(Class objectClass, String afterVerb) {
+            // if the property name with owning class name remove the class name
+            // e.g. "UserEmail" -> "Email"
+            String classPrefix = objectClass.getSimpleName();
+            if(afterVerb.startsWith(classPrefix))
+                afterVerb = afterVerb.substring(classPrefix.length());
+
+            if(afterVerb.length() < 1)
+                throw new ConfigurationException("cannot determine implied property name");
+
+            // lowercase the first character
+            return Character.toLowerCase(afterVerb.charAt(0)) + afterVerb.substring(1);
+        }
+
+        private StoreMethodImplementation createImplementation(final Backend backend, ObjectMapping naming, Map<Class, IdentityRegistry> identities, Map<Class, Map<String, PropertyConverter>> customConvs, Map<Class, Map<String, PropertyBinding>> properties, final FinderCache.Index caches) {
+            final IdentityRegistry ir = identities.get(objectClass);
+            final PropertyConverter[] conv = new PropertyConverter[fields.size()];
+            final Backend.Column[] cols = new Backend.Column[fields.size()];
+            final String[] names = fields.keySet().toArray(new String[fields.size()]);
+            final boolean[] any = new boolean[fields.size()];
+
+            int count = 0;
+            for(Map.Entry<String, Class> field: fields.entrySet()) {
+                any[count] = anyFields.contains(field.getKey());
+
+                final IdentityRegistry ar = identities.get(field.getValue());
+                final PropertyConverter customConv = customConvs.get(objectClass).get(field.getKey());
+
+                conv[count] = ar == null ? (customConv == null ? PropertyConverter.DUMMY : customConv) : new PropertyConverter.Identity(ar);
+
+                try {
+                    cols[count] = ar == null ?
+                        naming.getSimpleColumn(objectClass, field.getKey(), customConv != null ? String.class : field.getValue()) :
+                        naming.getIdentityColumn(objectClass, field.getKey(), field.getValue());
+                } catch(Exception e) {
+                    throw new BackendException(e);
+                }
+
+                properties.get(objectClass).put(field.getKey(), new PropertyBinding(cols[count], conv[count]));
+                count++;
+            }
+
+            switch(type) {
+                case 1:
+                    return new StoreMethodImplementation() {
+                        public Object invoke(Object[] args) throws Exception {
+                            Backend.Identity id = ir.peekId(args[0]);
+                            Object result = id == null ? null : backend.get(id, cols[0]);
+                            return result == null ? null : conv[0].intern(result);
+                        }
+                    };
+                case 2:
+                    return new StoreMethodImplementation() {
+                        public Object invoke(Object[] args) throws Exception {
+                            Backend.Identity id = ir.getId(args[0]); // NOTE: instantiating before any values
+
+                            for(int i = 1; i < args.length; i++) {
+                                try {
+                                    backend.set(id, cols[i - 1], args[i] == null ? null : conv[i - 1].extern(args[i]));
+                                } finally {
+                                    caches.propertyWritten(objectClass, names[i - 1]);
+                                }
+                            }
+
+                            return null;
+                        }
+                    };
+                case 4:
+                case 5:
+                    if(!(conv[0] instanceof PropertyConverter.Custom) || !((PropertyConverter.Custom)conv[0]).isList())
+                        throw new ConfigurationException("list item method requires a list converter for property: " + fields.keySet().iterator().next());
+
+                    final PropertyConverter.Custom listConv = (PropertyConverter.Custom)conv[0];
+                    final boolean append = type == 4;
+
+                    return new StoreMethodImplementation() {
+                        public Object invoke(Object[] args) throws Exception {
+                            Backend.Identity id = ir.peekId(args[0]);
+                            if(id == null) {
+                                // brand new object has nothing to remove
+                                if(!append)
+                                    return null;
+
+                                id = ir.getId(args[0]);
+                            }
+
+                            String item = listConv.externItem(args[1]);
+                            try {
+                                if(append)
+                                    backend.append(id, cols[0], item);
+                                else
+                                    backend.remove(id, cols[0], item);
+                            } finally {
+                                caches.propertyWritten(objectClass, names[0]);
+                            }
+
+                            return null;
+                        }
+                    };
+                case 3:
+                    final FinderCache cache = cacheSize > 0 ? new FinderCache(cacheSize, cacheTtl) : null;
+                    if(cache != null)
+                        caches.register(cache, objectClass, names);
+
+                    // common implementation returning backend results (identities, count or existence flag)
+                    final FinderImplementation findImpl = new FinderImplementation() {
+                        public Object invoke(Object[] args) throws Exception {
+                            Object[] findArgs = new Object[args.length];
+                            for(int i = 0; i < args.length; i++) {
+                                if(args[i] == null)
+                                    continue;
+
+                                if(any[i]) {
+                                    ArrayList<Object> values = new ArrayList<Object>();
+                                    for(Object arg: (Collection)args[i]) {
+                                        Object value = convert(i, arg);
+
+                                        // brand new objects cannot match anything
+                                        if(value != PropertyConverter.Identity.NONEXISTENT)
+                                            values.add(value);
+                                    }
+
+                                    // nothing to match against, result is always empty
+                                    if(values.isEmpty())
+                                        return empty();
+
+                                    findArgs[i] = values;
+                                } else {
+                                    findArgs[i] = convert(i, args[i]);
+
+                                    // if a brand new object is one of the criteria, result is always empty
+                                    if(findArgs[i] == PropertyConverter.Identity.NONEXISTENT)
+                                        return empty();
+                                }
+                            }
+
+                            if(cache == null)
+                                return find(findArgs);
+
+                            List<Object> key = Arrays.asList(findArgs);
+                            Object result = cache.get(key);
+                            if(result == null) {
+                                long generation = cache.getGeneration();
+                                result = find(findArgs);
+                                if(result instanceof Collection)
+                                    result = Collections.unmodifiableList(new ArrayList<Backend.Identity>((Collection<Backend.Identity>)result));
+                                cache.put(key, result, generation);
+                            }
+
+                            return result;
+                        }
+
+                        private Object convert(int i, Object arg) throws Exception {
+                            if(arg == null)
+                                return null;
+
+                            // use the "peek" mode if converting an identity object to detect brand new instances
+                            if(conv[i] instanceof PropertyConverter.Identity)
+                                return ((PropertyConverter.Identity)conv[i]).peek(arg);
+
+                            return conv[i].extern(arg);
+                        }
+
+                        private Object find(Object[] findArgs) throws Exception {
+                            switch(finderType) {
+                                case 4:
+                                    return backend.count(cols, findArgs);
+                                case 5:
+                                    return backend.exists(cols, findArgs);
+                                default:
+                                    return backend.find(cols, findArgs);
+                            }
+                        }
+
+                        private Object empty() {
+                            switch(finderType) {
+                                case 4:
+                                    return 0;
+                                case 5:
+                                    return false;
+                                default:
+                                    return Collections.emptySet();
+                            }
+                        }
+                    };
+
+                    switch(finderType) {
+                        case 1:
+                            return new StoreMethodImplementation() {
+                                public Object invoke(Object[] args) throws Exception {
+                                    Iterator<Backend.Identity> found = ((Collection<Backend.Identity>)findImpl.invoke(args)).iterator();
+                                    return found.hasNext() ? ir.getObject(found.next()) : null;
+                                }
+                            };
+                        case 2:
+                            return new StoreMethodImplementation() {
+                                public Object invoke(Object[] args) throws Exception {
+                                    Collection<Backend.Identity> found = (Collection<Backend.Identity>)findImpl.invoke(args);
+
+                                    ArrayList<Object> result = new ArrayList<Object>(found.size());
+                                    for(Backend.Identity id: found)
+                                        result.add(ir.getObject(id));
+
+                                    return result.toArray((Object[])Array.newInstance(objectClass, 0));
+                                }
+                            };
+                        case 3:
+                            return new StoreMethodImplementation() {
+                                public Object invoke(Object[] args) throws Exception {
+                                    Collection<Backend.Identity> found = (Collection<Backend.Identity>)findImpl.invoke(args);
+
+                                    ArrayList<Object> result = new ArrayList<Object>(found.size());
+                                    for(Backend.Identity id: found)
+                                        result.add(ir.getObject(id));
+
+                                    return result;
+                                }
+                            };
+                        case 4:
+                        case 5:
+                            return new StoreMethodImplementation() {
+                                public Object invoke(Object[] args) throws Exception {
+                                    return findImpl.invoke(args);
+                                }
+                            };
+                    }
+            }
+
+            // NOTE: this is not expected
+            throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Backend-bound state shared by the reflective and the precompiled store implementations.
+     */
+    private static class StoreCore {
+        private final Backend backend;
+        private final ObjectMapping naming;
+        private final StoreMethodImplementation[] actions;
+        private final long[] deadlines; // nanoseconds, 0 if none
+        private final Map<Class, IdentityRegistry> identities;
+        private final Map<Class, Map<String, PropertyBinding>> properties;
+
+        private StoreCore(Object store, StoreMethodInfo[] info, ConverterSpec[] converters, Backend backend, ObjectMapping naming, long defaultDeadline) {
+            this.backend = backend;
+            this.naming = naming;
+
+            deadlines = new long[info.length];
+            for(int i = 0; i < info.length; i++)
+                deadlines[i] = (info[i].deadline > 0 ? info[i].deadline : defaultDeadline) * 1000000;
+
+            // track identity classes; registries report new identities to the finder caches
+            FinderCache.Index caches = new FinderCache.Index();
+            HashMap<Class, IdentityRegistry> reg = new HashMap<Class, IdentityRegistry>();
+            HashMap<Class, Map<String, PropertyConverter>> convs = new HashMap<Class, Map<String, PropertyConverter>>();
+            HashMap<Class, Map<String, PropertyBinding>> props = new HashMap<Class, Map<String, PropertyBinding>>();
+            for(StoreMethodInfo mi: info) {
+                if(!reg.containsKey(mi.objectClass)) {
+                    reg.put(mi.objectClass, new IdentityRegistry(mi.objectClass, naming, caches));
+                    convs.put(mi.objectClass, new HashMap<String, PropertyConverter>());
+                    props.put(mi.objectClass, new HashMap<String, PropertyBinding>());
+                }
+            }
+
+            // register custom value converters
+            for(ConverterSpec c: converters) {
+                Map<String, PropertyConverter> objectConvs = convs.get(c.objectClass);
+                if(objectConvs == null)
+                    throw new ConfigurationException("converter specified for unknown identity class: " + c.objectClass);
+
+                objectConvs.put(c.property, new PropertyConverter.Custom(store, c.impl));
+            }
+
+            // now instantiate actual data method implementations
+            actions = new StoreMethodImplementation[info.length];
+            for(int i = 0; i < info.length; i++)
+                actions[i] = info[i].createImplementation(backend, naming, reg, convs, props, caches);
+
+            identities = Collections.unmodifiableMap(reg);
+            properties = Collections.unmodifiableMap(props);
+        }
+
+        private Object invoke(int index, Object[] args) {
+            return runWithDeadline(actions[index], args, deadlines[index]);
+        }
+    }
+
+    /**
+     * Run a backend action, reporting its failures as BackendException (or TimeoutException).
+     * @param deadlineNanos time the action may take, or 0 for no deadline; nested calls (e.g. from converters) keep the earlier deadline
+     */
+    private static Object runWithDeadline(StoreMethodImplementation action, Object[] args, long deadlineNanos) {
+        if(deadlineNanos == 0) {
+            try {
+                return action.invoke(args);
+            } catch(TimeoutException e) {
+                throw e;
+            } catch(Exception e) {
+                throw new BackendException(e);
+            }
+        }
+
+        long[] deadline = DEADLINE.get();
+        boolean hadDeadline = deadline[0] != 0;
+        long previous = deadline[1];
+
+        long expiresAt = System.nanoTime() + deadlineNanos;
+        if(!hadDeadline || expiresAt - previous < 0) {
+            deadline[0] = 1;
+            deadline[1] = expiresAt;
+        }
+
+        try {
+            return action.invoke(args);
+        } catch(TimeoutException e) {
+            throw e;
+        } catch(Exception e) {
+            // backend may not know about deadlines, but report the failure as a timeout anyway
+            if(System.nanoTime() - deadline[1] >= 0)
+                throw new TimeoutException(e);
+
+            throw new BackendException(e);
+        } finally {
+            deadline[0] = hadDeadline ? 1 : 0;
+            deadline[1] = previous;
+        }
+    }
+
+    // deadline of the data interface call in progress on each thread: { 1 if set, expiry System.nanoTime() }
+    private static final ThreadLocal<long[]> DEADLINE = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[2];
+        }
+    };
+
+    /**
+     * Get the time left until the deadline of the data interface call in progress on the current thread.
+     * Backends that support deadlines (e.g. MySQLBackend) use this to cancel their operations in time.
+     * @return remaining nanoseconds (zero or less once expired), or Long.MAX_VALUE if there is no deadline
+     */
+    public static long getRemainingNanos() {
+        long[] deadline = DEADLINE.get();
+        return deadline[0] == 0 ? Long.MAX_VALUE : deadline[1] - System.nanoTime();
+    }
+
+    /**
+     * Backend-independent description of a data interface. Parsed once per interface class and
+     * shared by all stores created for it, so that creating many stores (e.g. one per tenant) is cheap.
+     */
+    private static class InterfaceModel {
+        private final Class iface;
+        private final Constructor precompiledConstructor; // null when implemented by proxy
+        private final Map<Method, Integer> methodIndex;
+        private final StoreMethodInfo[] info;
+        private final ConverterSpec[] converters;
+
+        private InterfaceModel(Class iface) {
+            if(!iface.isInterface())
+                throw new ConfigurationException("interface class required");
+
+            this.iface = iface;
+
+            Class precompiledClass = iface.isAnnotationPresent(Precompile.class) ? findPrecompiledClass(iface) : null;
+            if(precompiledClass != null) {
+                // generated class supplies its own pre-parsed specs
+                Precompiled prototype;
+                try {
+                    precompiledConstructor = precompiledClass.getConstructor();
+                    prototype = (Precompiled)precompiledConstructor.newInstance();
+                } catch(Exception e) {
+                    throw new RuntimeException(e); // TODO: better error?
+                }
+
+                methodIndex = null;
+                info = prototype.getInfo();
+                converters = prototype.converters;
+                return;
+            }
+
+            precompiledConstructor = null;
+
+            // parse database action info for each method (static ones are never dispatched to the proxy)
+            ArrayList<Method> methods = new ArrayList<Method>();
+            for(Method m: iface.getMethods()) {
+                if(Modifier.isStatic(m.getModifiers()))
+                    continue;
+
+                if(!Modifier.isAbstract(m.getModifiers()))
+                    throw new ConfigurationException("data interface method must be abstract: " + m);
+
+                methods.add(m);
+            }
+
+            HashMap<Method, Integer> index = new HashMap<Method, Integer>();
+            info = new StoreMethodInfo[methods.size()];
+            for(int i = 0; i < info.length; i++) {
+                info[i] = new StoreMethodInfo(methods.get(i));
+                index.put(methods.get(i), i);
+            }
+
+            methodIndex = Collections.unmodifiableMap(index);
+
+            // read custom value converters
+            ArrayList<ConverterSpec> convs = new ArrayList<ConverterSpec>();
+            Info other = (Info)iface.getAnnotation(Info.class); // TODO: process super-classes!
+            if(other != null) {
+                for(Convert c: other.converters()) {
+                    try {
+                        convs.add(new ConverterSpec(c.object(), c.property(), c.convert().newInstance()));
+                    } catch(IllegalAccessException e) {
+                        throw new RuntimeException(e); // TODO: better error?
+                    } catch(InstantiationException e) {
+                        throw new RuntimeException(e); // TODO: better error?
+                    }
+                }
+            }
+
+            converters = convs.toArray(new ConverterSpec[convs.size()]);
+        }
+
+        private static Class findPrecompiledClass(Class iface) {
+            // generated class is a top-level class in the same package, e.g. "Outer$Data" -> "Outer_Data_FxrmStore"
+            String name = iface.getName();
+            int pkgEnd = name.lastIndexOf('.');
+            String className = name.substring(0, pkgEnd + 1) + name.substring(pkgEnd + 1).replace('$', '_') + "_FxrmStore";
+
+            Class implClass;
+            try {
+                implClass = Class.forName(className, true, iface.getClassLoader());
+            } catch(ClassNotFoundException e) {
+                return null; // annotation processing was not run, fall back to proxy
+            }
+
+            if(!iface.isAssignableFrom(implClass) || !Precompiled.class.isAssignableFrom(implClass))
+                throw new ConfigurationException("unexpected precompiled store class: " + implClass);
+
+            return implClass;
+        }
+    }
+
+    private static final ClassValue<InterfaceModel> MODELS = new ClassValue<InterfaceModel>() {
+        @Override
+        protected InterfaceModel computeValue(Class<?> iface) {
+            return new InterfaceModel(iface);
+        }
+    };
+
+    private static class StoreProxy implements InvocationHandler {
+        private final InterfaceModel model;
+        private volatile StoreCore core; // set right after the proxy is created (the core needs the proxy instance)
+
+        public StoreProxy(InterfaceModel model) {
+            this.model = model;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            // java.lang.Object methods are dispatched to the handler as well
+            if(method.getDeclaringClass() == Object.class) {
+                String name = method.getName();
+                if(name.equals("equals"))
+                    return proxy == args[0];
+                else if(name.equals("hashCode"))
+                    return System.identityHashCode(proxy);
+                else
+                    return model.iface.getName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+            }
+
+            return core.invoke(model.methodIndex.get(method), args);
+        }
+    }
+
+    private static StoreCore getCore(Object store) {
+        if(store instanceof Precompiled)
+            return ((Precompiled)store).core;
+
+        return ((StoreProxy)Proxy.getInvocationHandler(store)).core;
+    }
+
+    /**
+     * Create a new implementation of given data interface. Uses the precompiled implementation
+     * class if the interface is marked with @Precompile and the class is available (it is looked up
+     * by name, so native images need the reflection config generated along with it).
+     * @param iface data interface to implement
+     * @param backend data backend instance to use
+     * @return
+     */
+    public static <T> T create(Class<T> iface, Backend backend, ObjectMapping naming) {
+        return create(iface, backend, naming, 0);
+    }
+
+    /**
+     * Create a new implementation of given data interface, with a deadline for every method that does not specify its own.
+     * @param iface data interface to implement
+     * @param backend data backend instance to use
+     * @param deadlineMillis default method deadline in milliseconds, or 0 for none
+     * @return
+     */
+    public static <T> T create(Class<T> iface, Backend backend, ObjectMapping naming, long deadlineMillis) {
+        if(deadlineMillis < 0)
+            throw new ConfigurationException("deadline must not be negative");
+
+        InterfaceModel model = MODELS.get(iface);
+
+        if(model.precompiledConstructor != null) {
+            Precompiled impl;
+            try {
+                impl = (Precompiled)model.precompiledConstructor.newInstance();
+            } catch(Exception e) {
+                throw new RuntimeException(e); // TODO: better error?
+            }
+
+            impl.bind(new StoreCore(impl, model.info, model.converters, backend, naming, deadlineMillis));
+            return (T)impl;
+        }
+
+        StoreProxy handler = new StoreProxy(model);
+        T store = (T)Proxy.newProxyInstance(
+                Thread.currentThread().getContextClassLoader(),
+                new Class[] { iface },
+                handler
+                );
+
+        handler.core = new StoreCore(store, model.info, model.converters, backend, naming, deadlineMillis);
+        return store;
+    }
+
+    /**
+     * Bind a precompiled data interface implementation to given backend. Unlike the interface-based
+     * create() calls, this does not use reflection, e.g. for native images.
+     * @param impl new instance of the generated class, e.g. "new Data_FxrmStore()"
+     * @param backend data backend instance to use
+     * @return the given instance
+     */
+    public static <T extends Precompiled> T create(T impl, Backend backend, ObjectMapping naming) {
+        return create(impl, backend, naming, 0);
+    }
+
+    /**
+     * Bind a precompiled data interface implementation to given backend, with a deadline for every method that does not specify its own.
+     * @param impl new instance of the generated class, e.g. "new Data_FxrmStore()"
+     * @param backend data backend instance to use
+     * @param deadlineMillis default method deadline in milliseconds, or 0 for none
+     * @return the given instance
+     */
+    public static <T extends Precompiled> T create(T impl, Backend backend, ObjectMapping naming, long deadlineMillis) {
+        if(deadlineMillis < 0)
+            throw new ConfigurationException("deadline must not be negative");
+
+        Precompiled store = impl;
+        if(store.core != null)
+            throw new ConfigurationException("precompiled store instance is already bound");
+
+        store.bind(new StoreCore(store, store.getInfo(), store.converters, backend, naming, deadlineMillis));
+        return impl;
+    }
+
+    /**
+     * Get an external ID string for given identity object.
+     * @param store data interface implementation
+     * @param obj identity object
+     * @return external ID string, or null if the object is not persisted
+     */
+    public static Object extern(Object store, Object obj) {
+        StoreCore core = getCore(store);
+        Backend.Identity id = core.identities.get(obj.getClass()).peekId(obj);
+        return core.naming.extern(id);
+    }
+
+    /**
+     * Get an object instance that corresponds to given external ID. Multiple calls with the same
+     * external ID return the same object instance.
+     * @param store data interface implementation
+     * @param identity object identity class
+     * @param externalId external ID string
+     * @return object instance corresponding to given external ID
+     */
+    public static <T> T intern(Object store, Class<T> identity, Object externalId) {
+        StoreCore core = getCore(store);
+        Backend.Identity id = core.naming.intern(identity, externalId);
+        return (T)core.identities.get(identity).getObject(id);
+    }
+
+    /**
+     * Stream all persisted objects of given identity class along with the values of given properties.
+     * Intended for bulk export and view rebuilds: rows are passed to the handler as they are read
+     * from the backend (in chunks, for MySQLBackend), without loading the whole result into memory.
+     * @param store data interface implementation
+     * @param identity object identity class
+     * @param propertyNames properties to read (each must be used by some data interface method)
+     * @param handler receiver of objects and their property values, in the same order as property names
+     */
+    public static <T> void scan(Object store, Class<T> identity, String[] propertyNames, ScanHandler<T> handler) {
+        scan(store, identity, propertyNames, handler, 0);
+    }
+
+    /**
+     * Stream all persisted objects of given identity class along with the values of given properties,
+     * giving up with a TimeoutException once the deadline runs out. The deadline covers the whole scan,
+     * including time spent in the handler.
+     * @param store data interface implementation
+     * @param identity object identity class
+     * @param propertyNames properties to read (each must be used by some data interface method)
+     * @param handler receiver of objects and their property values, in the same order as property names
+     * @param deadlineMillis scan deadline in milliseconds, or 0 for none
+     */
+    public static <T> void scan(Object store, Class<T> identity, String[] propertyNames, final ScanHandler<T> handler, long deadlineMillis) {
+        if(deadlineMillis < 0)
+            throw new ConfigurationException("deadline must not be negative");
+
+        final StoreCore core = getCore(store);
+
+        final IdentityRegistry ir = core.identities.get(identity);
+        final Map<String, PropertyBinding> props = core.properties.get(identity);
+        if(ir == null)
+            throw new ConfigurationException("unknown identity class: " + identity);
+
+        final Backend.Column[] cols = new Backend.Column[propertyNames.length];
+        final PropertyConverter[] conv = new PropertyConverter[propertyNames.length];
+        for(int i = 0; i < propertyNames.length; i++) {
+            PropertyBinding binding = props.get(propertyNames[i]);
+            if(binding == null)
+                throw new ConfigurationException("unknown property: " + propertyNames[i]);
+
+            cols[i] = binding.column;
+            conv[i] = binding.conv;
+        }
+
+        runWithDeadline(new StoreMethodImplementation() {
+            public Object invoke(Object[] args) throws Exception {
+                core.backend.scan(cols, new Backend.ScanHandler() {
+                    public void row(Backend.Identity id, Object[] values) throws Exception {
+                        for(int i = 0; i < values.length; i++)
+                            values[i] = values[i] == null ? null : conv[i].intern(values[i]);
+
+                        handler.row((T)ir.getObject(id), values);
+                    }
+                });
+
+                return null;
+            }
+        }, null, deadlineMillis * 1000000);
+    }
+}
@@ -0,0 +1,467 @@
+/**
+ * Copyright 2011, Nick Matantsev
+ * Dual-licensed under the MIT or GPL Version 2 licenses.
+ */
+
+package org.fxrm.store.backend;
+
+import org.fxrm.store.Backend;
+import org.fxrm.store.Store;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Backend decorator that caches property values read through it. Values are dropped whenever they are
+ * written through the same decorator, and otherwise expire after a while, so it is only suitable when
+ * other writers are absent or their changes may be seen late. Wraps both the backend and its object
+ * mapping, so that cached properties can be written to a file.
+ *
+ * The hot set (most-read properties) can be saved into a snapshot file, e.g. on shutdown, and loaded
+ * on startup with batched reads, so that a new instance does not have to warm up on live traffic.
+ * Snapshots only list properties, and values are always read fresh from the backend.
+ *
+ * Entries are split into segments by property, each with its own lock and least-recently-used order,
+ * so that concurrent reads of different properties rarely wait for each other.
+ */
+public class CachingBackend implements Backend, Store.ObjectMapping {
+    private static final int SNAPSHOT_MAGIC = 0x46585353; // "FXSS"
+    private static final int SNAPSHOT_FORMAT = 2;
+    private static final int LOAD_BATCH_SIZE = 1000;
+    private static final long DEFAULT_TTL = 60000;
+    private static final int SEGMENTS = 16; // power of two
+
+    private static class Entry {
+        private final MappedColumn column;
+        private Object value = null;
+        private boolean loaded = false;
+        private long loadedAt = 0;
+        private Object loading = null; // token of the read in progress, cleared by writes
+        private int hits = 0;
+
+        private Entry(MappedColumn column) {
+            this.column = column;
+        }
+    }
+
+    private static class HotProperty {
+        private final Identity id;
+        private final MappedColumn column;
+        private final int hits;
+
+        private HotProperty(Identity id, MappedColumn column, int hits) {
+            this.id = id;
+            this.column = column;
+            this.hits = hits;
+        }
+    }
+
+    private final Backend backend;
+    private final Store.ObjectMapping naming;
+    private final long ttl;
+    private final LinkedHashMap<PropertyKey, Entry>[] segments; // each guarded by itself
+
+    /**
+     * Create a cache whose values expire a minute after they are read.
+     * @param backend backend to decorate
+     * @param naming object mapping to decorate; object classes must be Class instances and external IDs must be strings or survive toString()
+     * @param capacity maximum number of cached property values (rounded up to a multiple of 16)
+     */
+    public CachingBackend(Backend backend, Store.ObjectMapping naming, int capacity) {
+        this(backend, naming, capacity, DEFAULT_TTL);
+    }
+
+    /**
+     * @param backend backend to decorate
+     * @param naming object mapping to decorate; object classes must be Class instances and external IDs must be strings or survive toString()
+     * @param capacity maximum number of cached property values (rounded up to a multiple of 16)
+     * @param ttl milliseconds after which a cached value is read again, 0 to never expire
+     */
+    public CachingBackend(Backend backend, Store.ObjectMapping naming, int capacity, long ttl) {
+        this.backend = backend;
+        this.naming = naming;
+        this.ttl = ttl;
+
+        final int segmentCapacity = (capacity + SEGMENTS - 1) / SEGMENTS;
+        this.segments = new LinkedHashMap[SEGMENTS];
+        for(int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new LinkedHashMap<PropertyKey, Entry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<PropertyKey, Entry> eldest) {
+                    return size() > segmentCapacity;
+                }
+            };
+        }
+    }
+
+    private LinkedHashMap<PropertyKey, Entry> segment(PropertyKey key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * Write the most-read properties into a snapshot file. The file is replaced atomically, and only once
+     * the new contents are on disk.
+     * @param file snapshot file
+     * @param version application-defined version (e.g. schema or release), snapshots of other versions are not loaded
+     * @param maxEntries maximum number of properties to write
+     * @return number of properties written
+     */
+    public int saveSnapshot(File file, String version, int maxEntries) throws IOException {
+        ArrayList<HotProperty> hot = new ArrayList<HotProperty>();
+        for(LinkedHashMap<PropertyKey, Entry> entries: segments) {
+            synchronized(entries) {
+                for(Map.Entry<PropertyKey, Entry> e: entries.entrySet())
+                    hot.add(new HotProperty(e.getKey().id, e.getValue().column, e.getValue().hits));
+            }
+        }
+
+        Collections.sort(hot, new Comparator<HotProperty>() {
+            public int compare(HotProperty a, HotProperty b) {
+                return a.hits < b.hits ? 1 : (a.hits > b.hits ? -1 : 0);
+            }
+        });
+
+        // group by column, so that each column is written once and can be loaded in batches
+        LinkedHashMap<MappedColumn, List<HotProperty>> byColumn = new LinkedHashMap<MappedColumn, List<HotProperty>>();
+        for(HotProperty p: hot.subList(0, Math.min(maxEntries, hot.size()))) {
+            List<HotProperty> list = byColumn.get(p.column);
+            if(list == null) {
+                list = new ArrayList<HotProperty>();
+                byColumn.put(p.column, list);
+            }
+
+            list.add(p);
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(temp);
+        BufferedOutputStream buffered = new BufferedOutputStream(fileOut);
+        CRC32 crc = new CRC32();
+        DataOutputStream out = new DataOutputStream(new CheckedOutputStream(buffered, crc));
+        int count = 0;
+        try {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_FORMAT);
+            MappedColumn.writeString(out, version);
+            out.writeLong(System.currentTimeMillis());
+
+            out.writeInt(byColumn.size());
+            for(Map.Entry<MappedColumn, List<HotProperty>> group: byColumn.entrySet()) {
+                MappedColumn col = group.getKey();
+                col.write(out);
+
+                out.writeInt(group.getValue().size());
+                for(HotProperty p: group.getValue()) {
+                    col.writeIdentity(out, p.id, naming);
+                    out.writeInt(p.hits);
+                    count++;
+                }
+            }
+
+            // checksum of everything before it, outside of the checked stream
+            out.flush();
+            new DataOutputStream(buffered).writeInt((int)crc.getValue());
+            buffered.flush();
+            fileOut.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory(file.getAbsoluteFile().getParentFile());
+        return count;
+    }
+
+    private static void syncDirectory(File dir) {
+        // the rename is only durable once the directory is flushed; not possible on some platforms (e.g. Windows)
+        try {
+            FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch(IOException e) {
+            // snapshot is still valid, it may just revert to the previous one after a crash
+        }
+    }
+
+    /**
+     * Read property values listed in a snapshot file into the cache. Snapshots of a different version,
+     * older than the given age, unreadable (e.g. truncated) or missing altogether are ignored.
+     * @param file snapshot file
+     * @param version expected application-defined version
+     * @param maxAgeMillis maximum snapshot age, or 0 for any
+     * @return number of property values loaded
+     */
+    public int loadSnapshot(File file, String version, long maxAgeMillis) throws Exception {
+        if(!file.exists())
+            return 0;
+
+        LinkedHashMap<MappedColumn, List<Identity>> ids = new LinkedHashMap<MappedColumn, List<Identity>>();
+        LinkedHashMap<PropertyKey, Integer> hits = new LinkedHashMap<PropertyKey, Integer>();
+
+        // verify the whole file before parsing it, so that corrupt lengths are never used
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        if(bytes.length < 4)
+            return 0;
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        if((int)crc.getValue() != ByteBuffer.wrap(bytes, bytes.length - 4, 4).getInt())
+            return 0;
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 4));
+        try {
+            if(in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_FORMAT || !MappedColumn.readString(in).equals(version))
+                return 0;
+
+            long created = in.readLong();
+            if(maxAgeMillis > 0 && System.currentTimeMillis() - created > maxAgeMillis)
+                return 0;
+
+            int columnCount = in.readInt();
+            for(int i = 0; i < columnCount; i++) {
+                MappedColumn col = MappedColumn.read(in, naming);
+                ArrayList<Identity> list = new ArrayList<Identity>();
+                ids.put(col, list);
+
+                int count = in.readInt();
+                for(int j = 0; j < count; j++) {
+                    Identity id = col.readIdentity(in, naming);
+                    list.add(id);
+                    hits.put(new PropertyKey(id, col), in.readInt());
+                }
+            }
+        } catch(IOException e) {
+            return 0; // checksum passed, but the contents do not parse
+        } catch(ClassNotFoundException e) {
+            return 0; // written by an incompatible release without a version change
+        } finally {
+            in.close();
+        }
+
+        int loaded = 0;
+        for(Map.Entry<MappedColumn, List<Identity>> group: ids.entrySet()) {
+            List<Identity> list = group.getValue();
+            for(int start = 0; start < list.size(); start += LOAD_BATCH_SIZE)
+                loaded += load(group.getKey(), list.subList(start, Math.min(start + LOAD_BATCH_SIZE, list.size())), hits);
+        }
+
+        return loaded;
+    }
+
+    private int load(MappedColumn col, List<Identity> ids, Map<PropertyKey, Integer> hits) throws Exception {
+        PropertyKey[] keys = new PropertyKey[ids.size()];
+        Object token = new Object();
+
+        for(int i = 0; i < keys.length; i++) {
+            keys[i] = new PropertyKey(ids.get(i), col);
+
+            LinkedHashMap<PropertyKey, Entry> entries = segment(keys[i]);
+            synchronized(entries) {
+                // values read since startup are fresher than anything this batch could get
+                Entry e = entries.get(keys[i]);
+                if(e == null) {
+                    e = new Entry(col);
+                    entries.put(keys[i], e);
+                }
+
+                e.hits += hits.get(keys[i]);
+                if((!e.loaded || isExpired(e)) && e.loading == null)
+                    e.loading = token;
+            }
+        }
+
+        Object[] values = backend.getAll(ids.toArray(new Identity[ids.size()]), col.column);
+        long now = System.currentTimeMillis();
+
+        int count = 0;
+        for(int i = 0; i < keys.length; i++) {
+            LinkedHashMap<PropertyKey, Entry> entries = segment(keys[i]);
+            synchronized(entries) {
+                Entry e = entries.get(keys[i]);
+                if(e == null || e.loading != token)
+                    continue;
+
+                e.loading = null;
+
+                // missing rows look the same as null values, so both are left to get(), which reports missing rows
+                if(values[i] == null)
+                    continue;
+
+                e.value = values[i];
+                e.loaded = true;
+                e.loadedAt = now;
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Drop all cached values and read statistics.
+     */
+    public void clear() {
+        for(LinkedHashMap<PropertyKey, Entry> entries: segments) {
+            synchronized(entries) {
+                entries.clear();
+            }
+        }
+    }
+
+    public Object get(Identity id, Column col) throws Exception {
+        MappedColumn mcol = MappedColumn.cast(col, this);
+        PropertyKey key = new PropertyKey(id, mcol);
+        LinkedHashMap<PropertyKey, Entry> entries = segment(key);
+        Object token = new Object();
+
+        synchronized(entries) {
+            Entry e = entries.get(key);
+            if(e == null) {
+                e = new Entry(mcol);
+                entries.put(key, e);
+            }
+
+            e.hits++;
+            if(e.loaded && !isExpired(e))
+                return e.value;
+
+            e.loading = token;
+        }
+
+        Object value = backend.get(id, mcol.column);
+
+        // a write since the read started clears the token, and its value must not be overwritten
+        synchronized(entries) {
+            Entry e = entries.get(key);
+            if(e != null && e.loading == token) {
+                e.value = value;
+                e.loaded = true;
+                e.loadedAt = System.currentTimeMillis();
+                e.loading = null;
+            }
+        }
+
+        return value;
+    }
+
+    private boolean isExpired(Entry e) {
+        // other writers are only accounted for by expiry
+        return ttl > 0 && System.currentTimeMillis() - e.loadedAt > ttl;
+    }
+
+    public Object[] getAll(Identity[] ids, Column col) throws Exception {
+        return backend.getAll(ids, MappedColumn.unwrap(col));
+    }
+
+    public void set(Identity id, Column col, Object value) throws Exception {
+        MappedColumn mcol = MappedColumn.cast(col, this);
+        try {
+            backend.set(id, mcol.column, value);
+        } finally {
+            invalidate(id, mcol);
+        }
+    }
+
+    public void setAll(Identity[] ids, Column[] cols, Object[] values) throws Exception {
+        MappedColumn[] mcols = new MappedColumn[cols.length];
+        for(int i = 0; i < cols.length; i++)
+            mcols[i] = MappedColumn.cast(cols[i], this);
+
+        try {
+            backend.setAll(ids, MappedColumn.unwrap(cols), values);
+        } finally {
+            for(int i = 0; i < ids.length; i++)
+                invalidate(ids[i], mcols[i]);
+        }
+    }
+
+    public void append(Identity id, Column col, String item) throws Exception {
+        MappedColumn mcol = MappedColumn.cast(col, this);
+        try {
+            backend.append(id, mcol.column, item);
+        } finally {
+            invalidate(id, mcol);
+        }
+    }
+
+    public void remove(Identity id, Column col, String item) throws Exception {
+        MappedColumn mcol = MappedColumn.cast(col, this);
+        try {
+            backend.remove(id, mcol.column, item);
+        } finally {
+            invalidate(id, mcol);
+        }
+    }
+
+    private void invalidate(Identity id, MappedColumn col) {
+        PropertyKey key = new PropertyKey(id, col);
+        LinkedHashMap<PropertyKey, Entry> entries = segment(key);
+        synchronized(entries) {
+            // keep the entry for its read statistics
+            Entry e = entries.get(key);
+            if(e != null) {
+                e.value = null;
+                e.loaded = false;
+                e.loading = null;
+            }
+        }
+    }
+
+    public Collection<Identity> find(Column[] cols, Object[] args) throws Exception {
+        return backend.find(MappedColumn.unwrap(cols), args);
+    }
+
+    public int count(Column[] cols, Object[] args) throws Exception {
+        return backend.count(MappedColumn.unwrap(cols), args);
+    }
+
+    public boolean exists(Column[] cols, Object[] args) throws Exception {
+        return backend.exists(MappedColumn.unwrap(cols), args);
+    }
+
+    public void scan(Column[] cols, ScanHandler handler) throws Exception {
+        backend.scan(MappedColumn.unwrap(cols), handler);
+    }
+
+    public Column getIdentityColumn(Object objectClass, String propertyName, Class referenceClass) {
+        return MappedColumn.create(naming, objectClass, propertyName, referenceClass, true);
+    }
+
+    public Column getSimpleColumn(Object objectClass, String propertyName, Class valueClass) {
+        return MappedColumn.create(naming, objectClass, propertyName, valueClass, false);
+    }
+
+    public Identity createIdentity(Object objectClass) {
+        return naming.createIdentity(objectClass);
+    }
+
+    public Identity intern(Object objectClass, Object externalId) {
+        return naming.intern(objectClass, externalId);
+    }
+
+    public Object extern(Identity id) {
+        return naming.extern(id);
+    }
+}
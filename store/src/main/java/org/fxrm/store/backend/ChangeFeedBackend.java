@@ -0,0 +1,329 @@
+/**
+ * Copyright 2011, Nick Matantsev
+ * Dual-licensed under the MIT or GPL Version 2 licenses.
+ */
+
+package org.fxrm.store.backend;
+
+import org.fxrm.store.Backend;
+import org.fxrm.store.Store;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Backend decorator that publishes every committed change into a bounded in-process feed,
+ * e.g. for asynchronous projection of CQRS read models.
+ * Wraps both the backend and its object mapping, so that identity creations are reported as well
+ * and each change names the object class and property it belongs to.
+ *
+ * The feed is a lock-free ring buffer that may be drained by any number of consumer threads.
+ * When the buffer is full, new changes are dropped and counted: consumers should watch
+ * the dropped change count and rebuild their projections from scratch when it moves.
+ */
+public class ChangeFeedBackend implements Backend, Store.ObjectMapping {
+    /**
+     * Single committed change. Value is in the backend representation (e.g. an identity
+     * for reference properties) and may be null. For list item changes, value is the appended or removed item.
+     * Column and property name are null for identity creations.
+     */
+    public static class Change {
+        public static final int CREATE = 1;
+        public static final int SET = 2;
+        public static final int APPEND = 3;
+        public static final int REMOVE = 4;
+
+        public final int type;
+        public final Backend.Identity identity;
+        public final Class objectClass;
+        public final String propertyName;
+        public final Backend.Column column; // as created by the decorated object mapping
+        public final Object value;
+
+        private Change(int type, Backend.Identity identity, Class objectClass, String propertyName, Backend.Column column, Object value) {
+            this.type = type;
+            this.identity = identity;
+            this.objectClass = objectClass;
+            this.propertyName = propertyName;
+            this.column = column;
+            this.value = value;
+        }
+
+        private Change(int type, Backend.Identity identity, MappedColumn column, Object value) {
+            this(type, identity, column.objectClass, column.propertyName, column.column, value);
+        }
+    }
+
+    private final Backend backend;
+    private final Store.ObjectMapping naming;
+
+    // ring buffer slots and their sequence markers (see Vyukov's bounded MPMC queue)
+    private final int mask;
+    private final AtomicReferenceArray<Change> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    // keeps commit order and feed order consistent for writes to the same property: only writers of
+    // the same property wait for each other's backend round trip, unrelated writers never do
+    private final HashMap<PropertyKey, PropertyLock> propertyLocks = new HashMap<PropertyKey, PropertyLock>(); // guarded by itself
+    private final Object batchLock = new Object();
+
+    private static class PropertyLock {
+        int users = 0;
+        boolean held = false;
+    }
+
+    /**
+     * @param backend backend to decorate
+     * @param naming object mapping to decorate (typically associated with the same database as the backend); object classes must be Class instances
+     * @param capacity maximum number of undrained changes, must be a power of two
+     */
+    public ChangeFeedBackend(Backend backend, Store.ObjectMapping naming, int capacity) {
+        if(capacity < 1 || (capacity & (capacity - 1)) != 0)
+            throw new IllegalArgumentException("capacity must be a power of two");
+
+        this.backend = backend;
+        this.naming = naming;
+
+        mask = capacity - 1;
+        slots = new AtomicReferenceArray<Change>(capacity);
+        sequences = new AtomicLongArray(capacity);
+        for(int i = 0; i < capacity; i++)
+            sequences.set(i, i);
+    }
+
+    /**
+     * Take the oldest undrained change from the feed.
+     * @return change or null if feed is empty
+     */
+    public Change poll() {
+        long pos = head.get();
+        while(true) {
+            int index = (int)pos & mask;
+            long dif = sequences.get(index) - (pos + 1);
+
+            if(dif == 0) {
+                if(head.compareAndSet(pos, pos + 1)) {
+                    Change change = slots.get(index);
+                    slots.set(index, null);
+                    sequences.set(index, pos + mask + 1);
+                    return change;
+                }
+
+                pos = head.get();
+            } else if(dif < 0) {
+                return null;
+            } else {
+                pos = head.get();
+            }
+        }
+    }
+
+    /**
+     * Take a batch of oldest undrained changes from the feed.
+     * @param out collection to add changes to
+     * @param max maximum number of changes to take
+     * @return number of changes taken
+     */
+    public int drain(Collection<? super Change> out, int max) {
+        int count = 0;
+        while(count < max) {
+            Change change = poll();
+            if(change == null)
+                break;
+
+            out.add(change);
+            count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * Get the total number of changes that did not fit into the feed.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private void publish(Change change) {
+        long pos = tail.get();
+        while(true) {
+            int index = (int)pos & mask;
+            long dif = sequences.get(index) - pos;
+
+            if(dif == 0) {
+                if(tail.compareAndSet(pos, pos + 1)) {
+                    slots.set(index, change);
+                    sequences.set(index, pos + 1);
+                    return;
+                }
+
+                pos = tail.get();
+            } else if(dif < 0) {
+                dropped.incrementAndGet();
+                return;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    private void lock(PropertyKey key) throws InterruptedException {
+        synchronized(propertyLocks) {
+            PropertyLock l = propertyLocks.get(key);
+            if(l == null) {
+                l = new PropertyLock();
+                propertyLocks.put(key, l);
+            }
+
+            l.users++;
+            try {
+                while(l.held)
+                    propertyLocks.wait();
+            } catch(InterruptedException e) {
+                release(key, l);
+                throw e;
+            }
+
+            l.held = true;
+        }
+    }
+
+    private void unlock(PropertyKey key) {
+        synchronized(propertyLocks) {
+            PropertyLock l = propertyLocks.get(key);
+            l.held = false;
+            release(key, l);
+        }
+    }
+
+    private void release(PropertyKey key, PropertyLock l) {
+        if(--l.users == 0)
+            propertyLocks.remove(key);
+
+        propertyLocks.notifyAll();
+    }
+
+    public Object get(Identity id, Column col) throws Exception {
+        return backend.get(id, MappedColumn.unwrap(col));
+    }
+
+    public Object[] getAll(Identity[] ids, Column col) throws Exception {
+        return backend.getAll(ids, MappedColumn.unwrap(col));
+    }
+
+    public void set(Identity id, Column col, Object value) throws Exception {
+        MappedColumn mcol = MappedColumn.cast(col, this);
+        PropertyKey key = new PropertyKey(id, mcol.column);
+
+        lock(key);
+        try {
+            backend.set(id, mcol.column, value);
+            publish(new Change(Change.SET, id, mcol, value));
+        } finally {
+            unlock(key);
+        }
+    }
+
+    public void setAll(Identity[] ids, Column[] cols, Object[] values) throws Exception {
+        MappedColumn[] mcols = new MappedColumn[cols.length];
+        LinkedHashSet<PropertyKey> keys = new LinkedHashSet<PropertyKey>();
+        for(int i = 0; i < ids.length; i++) {
+            mcols[i] = MappedColumn.cast(cols[i], this);
+            keys.add(new PropertyKey(ids[i], mcols[i].column));
+        }
+
+        // batches take their property locks one by one, so only one batch may be doing that at a time to avoid deadlocks
+        // (the locks are then held without it, and single-property writers never wait while holding a lock)
+        int locked = 0;
+        try {
+            synchronized(batchLock) {
+                for(PropertyKey key: keys) {
+                    lock(key);
+                    locked++;
+                }
+            }
+
+            backend.setAll(ids, MappedColumn.unwrap(cols), values);
+            for(int i = 0; i < ids.length; i++)
+                publish(new Change(Change.SET, ids[i], mcols[i], values[i]));
+        } finally {
+            for(PropertyKey key: keys) {
+                if(locked-- == 0)
+                    break;
+
+                unlock(key);
+            }
+        }
+    }
+
+    public void append(Identity id, Column col, String item) throws Exception {
+        MappedColumn mcol = MappedColumn.cast(col, this);
+        PropertyKey key = new PropertyKey(id, mcol.column);
+
+        lock(key);
+        try {
+            backend.append(id, mcol.column, item);
+            publish(new Change(Change.APPEND, id, mcol, item));
+        } finally {
+            unlock(key);
+        }
+    }
+
+    public void remove(Identity id, Column col, String item) throws Exception {
+        MappedColumn mcol = MappedColumn.cast(col, this);
+        PropertyKey key = new PropertyKey(id, mcol.column);
+
+        lock(key);
+        try {
+            backend.remove(id, mcol.column, item);
+            publish(new Change(Change.REMOVE, id, mcol, item));
+        } finally {
+            unlock(key);
+        }
+    }
+
+    public Collection<Identity> find(Column[] cols, Object[] args) throws Exception {
+        return backend.find(MappedColumn.unwrap(cols), args);
+    }
+
+    public int count(Column[] cols, Object[] args) throws Exception {
+        return backend.count(MappedColumn.unwrap(cols), args);
+    }
+
+    public boolean exists(Column[] cols, Object[] args) throws Exception {
+        return backend.exists(MappedColumn.unwrap(cols), args);
+    }
+
+    public void scan(Column[] cols, ScanHandler handler) throws Exception {
+        backend.scan(MappedColumn.unwrap(cols), handler);
+    }
+
+    public Column getIdentityColumn(Object objectClass, String propertyName, Class referenceClass) {
+        return MappedColumn.create(naming, objectClass, propertyName, referenceClass, true);
+    }
+
+    public Column getSimpleColumn(Object objectClass, String propertyName, Class valueClass) {
+        return MappedColumn.create(naming, objectClass, propertyName, valueClass, false);
+    }
+
+    public Identity createIdentity(Object objectClass) {
+        Identity id = naming.createIdentity(objectClass);
+        publish(new Change(Change.CREATE, id, objectClass instanceof Class ? (Class)objectClass : null, null, null, null));
+        return id;
+    }
+
+    public Identity intern(Object objectClass, Object externalId) {
+        return naming.intern(objectClass, externalId);
+    }
+
+    public Object extern(Identity id) {
+        return naming.extern(id);
+    }
+}
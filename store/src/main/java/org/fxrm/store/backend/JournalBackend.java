@@ -0,0 +1,717 @@
+/**
+ * Copyright 2011, Nick Matantsev
+ * Dual-licensed under the MIT or GPL Version 2 licenses.
+ */
+
+package org.fxrm.store.backend;
+
+import org.fxrm.store.Backend;
+import org.fxrm.store.Store;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLNonTransientException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Backend decorator that makes property sets durable in a local write-ahead journal file and acknowledges
+ * them right away, replaying them into the decorated backend asynchronously. Concurrent writers share
+ * journal flushes (group commit). Wraps both the backend and its object mapping, so that journal records
+ * can refer to columns and identities in a way that survives restarts.
+ *
+ * Reads of a property return its journaled value until it is replayed. Finders and scans wait for
+ * the replay of all sets issued before them, up to the deadline of the data interface call. List item
+ * changes and identity creation go directly to the decorated backend (they are not idempotent).
+ *
+ * On startup, any records left in the journal by a crash are replayed before the backend is usable.
+ * Replayed sets are marked as such in the journal, so that recovery does not write them again over
+ * newer values from other writers. A torn record at the end of the journal is discarded.
+ *
+ * Sets that the decorated backend rejects for good (e.g. constraint violations or values too long for
+ * their column) are moved to a list of rejected sets instead of holding back the rest of the journal.
+ * Other failures are retried; while replay is failing, finders and list item changes fail right away.
+ */
+public class JournalBackend implements Backend, Store.ObjectMapping {
+    private static final byte RECORD_SET = 1;
+    private static final byte RECORD_DIRECT_WRITE = 2; // earlier sets of the same property must not be replayed
+    private static final byte RECORD_REPLAYED = 3; // sets up to the given journal position must not be replayed
+
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int REPLAY_BATCH_SIZE = 1000;
+    private static final long REPLAY_RETRY_MILLIS = 1000;
+    private static final long CHECKPOINT_SIZE = 16 * 1024 * 1024;
+
+    private static class Pending {
+        private final PropertyKey key;
+        private final Object value;
+        private final long seq;
+        private final long end; // journal position after the record
+
+        private Pending(PropertyKey key, Object value, long seq, long end) {
+            this.key = key;
+            this.value = value;
+            this.seq = seq;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Journaled set that the decorated backend refused to apply.
+     */
+    public static class RejectedSet {
+        private final Identity id;
+        private final Column column;
+        private final Object value;
+        private final Exception error;
+
+        private RejectedSet(Identity id, Column column, Object value, Exception error) {
+            this.id = id;
+            this.column = column;
+            this.value = value;
+            this.error = error;
+        }
+
+        public Identity getIdentity() {
+            return id;
+        }
+
+        /**
+         * Column of the decorated backend.
+         */
+        public Column getColumn() {
+            return column;
+        }
+
+        public Object getValue() {
+            return value;
+        }
+
+        public Exception getError() {
+            return error;
+        }
+    }
+
+    private final Backend backend;
+    private final Store.ObjectMapping naming;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final Thread replayThread;
+
+    // journal state, guarded by lock
+    private final Object lock = new Object();
+    private final ArrayDeque<Pending> queue = new ArrayDeque<Pending>();
+    private long writtenSeq = 0; // any record
+    private long queuedSeq = 0; // set records only
+    private long replayedSeq = 0;
+    private boolean closed = false;
+
+    // latest unreplayed value of each property; modified under lock, read without it
+    private final ConcurrentHashMap<PropertyKey, Pending> overlay = new ConcurrentHashMap<PropertyKey, Pending>();
+
+    // group commit state, guarded by syncLock
+    private final Object syncLock = new Object();
+    private long syncedSeq = 0;
+    private boolean syncing = false;
+
+    private volatile Exception replayError = null;
+    private final List<RejectedSet> rejected = new ArrayList<RejectedSet>(); // guarded by itself
+
+    /**
+     * Open the journal, replaying any records left over from a previous run.
+     * @param backend backend to decorate
+     * @param naming object mapping to decorate; object classes must be Class instances and external IDs must be strings or survive toString()
+     * @param journal journal file, created if it does not exist
+     */
+    public JournalBackend(Backend backend, Store.ObjectMapping naming, File journal) throws Exception {
+        this.backend = backend;
+        this.naming = naming;
+
+        file = new RandomAccessFile(journal, "rw");
+        channel = file.getChannel();
+
+        try {
+            recover();
+        } catch(Exception e) {
+            file.close();
+            throw e;
+        }
+
+        replayThread = new Thread("fxrm-journal-replay") {
+            @Override
+            public void run() {
+                runReplay();
+            }
+        };
+        replayThread.setDaemon(true);
+        replayThread.start();
+    }
+
+    /**
+     * Get the number of journaled sets not yet replayed into the decorated backend.
+     */
+    public long getPendingCount() {
+        synchronized(lock) {
+            return queuedSeq - replayedSeq;
+        }
+    }
+
+    /**
+     * Get the error of the last failed replay attempt, or null if the last attempt succeeded.
+     * Failed sets are retried until they succeed, unless they are rejected for good (see getRejectedSets()).
+     */
+    public Exception getReplayError() {
+        return replayError;
+    }
+
+    /**
+     * Get sets that the decorated backend rejected for good since the journal was opened, in replay order.
+     * These sets are considered done and are not replayed again.
+     */
+    public List<RejectedSet> getRejectedSets() {
+        synchronized(rejected) {
+            return new ArrayList<RejectedSet>(rejected);
+        }
+    }
+
+    /**
+     * Stop replaying and close the journal file. Sets that have not been replayed yet stay in the journal
+     * and are replayed when it is opened again.
+     */
+    public void close() throws IOException, InterruptedException {
+        synchronized(lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+
+        // not interrupted, since that would close the channel in the middle of writing a replay mark
+        replayThread.join();
+
+        synchronized(lock) {
+            if(replayedSeq == queuedSeq)
+                channel.truncate(0);
+
+            channel.force(false);
+            file.close();
+        }
+    }
+
+    public Object get(Identity id, Column col) throws Exception {
+        Pending p = overlay.get(new PropertyKey(id, MappedColumn.unwrap(col)));
+        if(p != null)
+            return p.value;
+
+        return backend.get(id, MappedColumn.unwrap(col));
+    }
+
+    public Object[] getAll(Identity[] ids, Column col) throws Exception {
+        Column column = MappedColumn.unwrap(col);
+
+        // check before reading the backend, since entries are removed once replayed
+        Pending[] pending = new Pending[ids.length];
+        for(int i = 0; i < ids.length; i++)
+            pending[i] = overlay.get(new PropertyKey(ids[i], column));
+
+        Object[] values = backend.getAll(ids, column);
+        for(int i = 0; i < ids.length; i++) {
+            if(pending[i] != null)
+                values[i] = pending[i].value;
+        }
+
+        return values;
+    }
+
+    public void set(Identity id, Column col, Object value) throws Exception {
+        MappedColumn mcol = MappedColumn.cast(col, this);
+        byte[] record = encode(RECORD_SET, id, mcol, value);
+
+        long seq;
+        synchronized(lock) {
+            seq = write(record);
+
+            Pending p = new Pending(new PropertyKey(id, mcol.column), value, ++queuedSeq, channel.position());
+            overlay.put(p.key, p);
+            queue.add(p);
+            lock.notifyAll();
+        }
+
+        awaitDurable(seq);
+    }
+
+    public void setAll(Identity[] ids, Column[] cols, Object[] values) throws Exception {
+        byte[][] records = new byte[ids.length][];
+        for(int i = 0; i < ids.length; i++)
+            records[i] = encode(RECORD_SET, ids[i], MappedColumn.cast(cols[i], this), values[i]);
+
+        long seq = 0;
+        synchronized(lock) {
+            for(int i = 0; i < ids.length; i++) {
+                seq = write(records[i]);
+
+                Pending p = new Pending(new PropertyKey(ids[i], MappedColumn.unwrap(cols[i])), values[i], ++queuedSeq, channel.position());
+                overlay.put(p.key, p);
+                queue.add(p);
+            }
+
+            lock.notifyAll();
+        }
+
+        // one flush covers the whole batch
+        if(seq > 0)
+            awaitDurable(seq);
+    }
+
+    public void append(Identity id, Column col, String item) throws Exception {
+        awaitDirectWrite(id, MappedColumn.cast(col, this));
+        backend.append(id, MappedColumn.unwrap(col), item);
+    }
+
+    public void remove(Identity id, Column col, String item) throws Exception {
+        awaitDirectWrite(id, MappedColumn.cast(col, this));
+        backend.remove(id, MappedColumn.unwrap(col), item);
+    }
+
+    public Collection<Identity> find(Column[] cols, Object[] args) throws Exception {
+        awaitReplay();
+        return backend.find(MappedColumn.unwrap(cols), args);
+    }
+
+    public int count(Column[] cols, Object[] args) throws Exception {
+        awaitReplay();
+        return backend.count(MappedColumn.unwrap(cols), args);
+    }
+
+    public boolean exists(Column[] cols, Object[] args) throws Exception {
+        awaitReplay();
+        return backend.exists(MappedColumn.unwrap(cols), args);
+    }
+
+    public void scan(Column[] cols, ScanHandler handler) throws Exception {
+        awaitReplay();
+        backend.scan(MappedColumn.unwrap(cols), handler);
+    }
+
+    public Column getIdentityColumn(Object objectClass, String propertyName, Class referenceClass) {
+        return MappedColumn.create(naming, objectClass, propertyName, referenceClass, true);
+    }
+
+    public Column getSimpleColumn(Object objectClass, String propertyName, Class valueClass) {
+        return MappedColumn.create(naming, objectClass, propertyName, valueClass, false);
+    }
+
+    public Identity createIdentity(Object objectClass) {
+        // the database assigns IDs, so creation cannot be acknowledged ahead of it
+        return naming.createIdentity(objectClass);
+    }
+
+    public Identity intern(Object objectClass, Object externalId) {
+        return naming.intern(objectClass, externalId);
+    }
+
+    public Object extern(Identity id) {
+        return naming.extern(id);
+    }
+
+    private byte[] encode(byte type, Identity id, MappedColumn col, Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeByte(type);
+        col.write(out);
+        col.writeIdentity(out, id, naming);
+        if(type == RECORD_SET)
+            col.writeValue(out, value, naming);
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Append a record to the journal file. Must be called under lock.
+     * @return record sequence number to wait for durability with
+     */
+    private long write(byte[] payload) throws IOException {
+        if(closed)
+            throw new IllegalStateException("journal is closed");
+
+        return append(payload);
+    }
+
+    /**
+     * Append a record even if closed, e.g. to mark sets that were replayed while closing. Must be called under lock.
+     */
+    private long append(byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        buf.putInt(payload.length);
+        buf.putInt((int)crc.getValue());
+        buf.put(payload);
+        buf.flip();
+
+        while(buf.hasRemaining())
+            channel.write(buf);
+
+        return ++writtenSeq;
+    }
+
+    /**
+     * Wait until a written record is flushed to disk. Whoever finds no flush in progress flushes
+     * on behalf of every writer that is waiting at that point.
+     */
+    private void awaitDurable(long seq) throws IOException, InterruptedException {
+        synchronized(syncLock) {
+            while(true) {
+                if(syncedSeq >= seq)
+                    return;
+
+                if(!syncing)
+                    break;
+
+                syncLock.wait();
+            }
+
+            syncing = true;
+        }
+
+        long target;
+        synchronized(lock) {
+            target = writtenSeq;
+        }
+
+        boolean success = false;
+        try {
+            channel.force(false);
+            success = true;
+        } finally {
+            synchronized(syncLock) {
+                syncing = false;
+                if(success)
+                    syncedSeq = Math.max(syncedSeq, target);
+
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    private void awaitReplay() throws InterruptedException {
+        synchronized(lock) {
+            long target = queuedSeq;
+            while(replayedSeq < target) {
+                if(closed)
+                    throw new IllegalStateException("journal is closed");
+
+                waitForReplay();
+            }
+        }
+    }
+
+    /**
+     * Wait until the property has no unreplayed sets, then journal that it is about to be written directly.
+     * Otherwise, a crash recovery would replay older sets over the direct write.
+     */
+    private void awaitDirectWrite(Identity id, MappedColumn col) throws IOException, InterruptedException {
+        byte[] record = encode(RECORD_DIRECT_WRITE, id, col, null);
+        PropertyKey key = new PropertyKey(id, col.column);
+
+        long seq;
+        synchronized(lock) {
+            while(overlay.containsKey(key)) {
+                if(closed)
+                    throw new IllegalStateException("journal is closed");
+
+                waitForReplay();
+            }
+
+            seq = write(record);
+        }
+
+        awaitDurable(seq);
+    }
+
+    /**
+     * Wait for replay progress, but not past the deadline of the data interface call in progress. Must be called under lock.
+     * Fails right away while replay is failing, since that may take arbitrarily long to clear up.
+     */
+    private void waitForReplay() throws InterruptedException {
+        Exception error = replayError;
+        if(error != null)
+            throw new Store.BackendException("journal replay is failing", error);
+
+        long remaining = Store.getRemainingNanos();
+        if(remaining <= 0)
+            throw new Store.TimeoutException(null);
+
+        if(remaining == Long.MAX_VALUE)
+            lock.wait();
+        else
+            TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+    }
+
+    private void recover() throws Exception {
+        // latest value and record end position of each journaled property, in journal order
+        LinkedHashMap<PropertyKey, Object[]> latest = new LinkedHashMap<PropertyKey, Object[]>();
+
+        long size = file.length();
+        long position = 0;
+
+        while(size - position >= RECORD_HEADER_SIZE) {
+            file.seek(position);
+            int length = file.readInt();
+            int checksum = file.readInt();
+            if(length < 0 || length > size - position - RECORD_HEADER_SIZE)
+                break; // torn write
+
+            byte[] payload = new byte[length];
+            file.readFully(payload);
+
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if((int)crc.getValue() != checksum)
+                break; // torn write
+
+            position += RECORD_HEADER_SIZE + length;
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            byte type = in.readByte();
+            if(type == RECORD_REPLAYED) {
+                // entries are in journal order, since updated ones are re-inserted
+                long replayed = in.readLong();
+                Iterator<Object[]> i = latest.values().iterator();
+                while(i.hasNext() && (Long)i.next()[1] <= replayed)
+                    i.remove();
+
+                continue;
+            }
+
+            MappedColumn col = MappedColumn.read(in, naming);
+            Identity id = col.readIdentity(in, naming);
+            PropertyKey key = new PropertyKey(id, col.column);
+
+            latest.remove(key);
+            if(type == RECORD_SET)
+                latest.put(key, new Object[] { col.readValue(in, naming), position });
+        }
+
+        Iterator<Map.Entry<PropertyKey, Object[]>> entries = latest.entrySet().iterator();
+        for(int remaining = latest.size(); remaining > 0; remaining -= REPLAY_BATCH_SIZE) {
+            int count = Math.min(remaining, REPLAY_BATCH_SIZE);
+            Identity[] ids = new Identity[count];
+            Column[] cols = new Column[count];
+            Object[] values = new Object[count];
+
+            for(int i = 0; i < count; i++) {
+                Map.Entry<PropertyKey, Object[]> e = entries.next();
+                ids[i] = e.getKey().id;
+                cols[i] = e.getKey().column;
+                values[i] = e.getValue()[0];
+            }
+
+            try {
+                backend.setAll(ids, cols, values);
+            } catch(Exception e) {
+                // find the rejected sets, but do not open the journal while the backend is failing
+                for(int i = 0; i < count; i++) {
+                    try {
+                        backend.set(ids[i], cols[i], values[i]);
+                    } catch(Exception e2) {
+                        if(!isPermanent(e2))
+                            throw e2;
+
+                        reject(ids[i], cols[i], values[i], e2);
+                    }
+                }
+            }
+        }
+
+        channel.truncate(0);
+        channel.force(true);
+    }
+
+    private void runReplay() {
+        while(true) {
+            List<Pending> batch = new ArrayList<Pending>();
+
+            synchronized(lock) {
+                while(queue.isEmpty() && !closed) {
+                    try {
+                        lock.wait();
+                    } catch(InterruptedException e) {
+                        // re-check closed flag
+                    }
+                }
+
+                if(closed)
+                    return;
+
+                while(!queue.isEmpty() && batch.size() < REPLAY_BATCH_SIZE)
+                    batch.add(queue.poll());
+            }
+
+            if(!replay(batch))
+                return;
+
+            long markSeq = 0;
+            synchronized(lock) {
+                for(Pending p: batch)
+                    overlay.remove(p.key, p);
+
+                Pending last = batch.get(batch.size() - 1);
+                replayedSeq = last.seq;
+
+                try {
+                    if(replayedSeq == queuedSeq && channel.size() >= CHECKPOINT_SIZE) {
+                        // everything in the journal has reached the backend, so it can start over
+                        channel.truncate(0);
+                        channel.force(true);
+                    } else {
+                        markSeq = append(encodeReplayed(last.end));
+                    }
+                } catch(IOException e) {
+                    replayError = e; // recovery may write these sets again
+                }
+
+                lock.notifyAll();
+            }
+
+            if(markSeq > 0) {
+                try {
+                    awaitDurable(markSeq);
+                } catch(Exception e) {
+                    replayError = e; // recovery may write these sets again
+                }
+            }
+        }
+    }
+
+    private static byte[] encodeReplayed(long end) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeByte(RECORD_REPLAYED);
+        out.writeLong(end);
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return false if closed before the batch was fully replayed
+     */
+    private boolean replay(List<Pending> batch) {
+        // only the latest set of each property needs to reach the backend
+        LinkedHashMap<PropertyKey, Pending> latest = new LinkedHashMap<PropertyKey, Pending>();
+        for(Pending p: batch)
+            latest.put(p.key, p);
+
+        Identity[] ids = new Identity[latest.size()];
+        Column[] cols = new Column[latest.size()];
+        Object[] values = new Object[latest.size()];
+
+        int count = 0;
+        for(Pending p: latest.values()) {
+            ids[count] = p.key.id;
+            cols[count] = p.key.column;
+            values[count] = p.value;
+            count++;
+        }
+
+        try {
+            backend.setAll(ids, cols, values);
+            replayError = null;
+            return true;
+        } catch(Exception e) {
+            // sets are idempotent, so a failed batch is replayed again one set at a time to single out bad sets
+        }
+
+        for(int i = 0; i < count; i++) {
+            if(!replay(ids[i], cols[i], values[i]))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Replay a single set, retrying until it succeeds or is rejected for good. Rejected sets are marked
+     * as replayed along with the rest of their batch.
+     * @return false if closed before the set was replayed
+     */
+    private boolean replay(Identity id, Column col, Object value) {
+        while(true) {
+            try {
+                backend.set(id, col, value);
+                replayError = null;
+                return true;
+            } catch(Exception e) {
+                if(isPermanent(e)) {
+                    reject(id, col, value, e);
+                    return true;
+                }
+
+                replayError = e;
+            }
+
+            // waiting on the lock rather than sleeping, so that closing does not have to interrupt
+            synchronized(lock) {
+                lock.notifyAll(); // waiters fail with the replay error instead of waiting for the retry
+
+                long retryAt = System.currentTimeMillis() + REPLAY_RETRY_MILLIS;
+                long delay;
+                while(!closed && (delay = retryAt - System.currentTimeMillis()) > 0) {
+                    try {
+                        lock.wait(delay);
+                    } catch(InterruptedException e) {
+                        // re-check closed flag
+                    }
+                }
+
+                if(closed)
+                    return false;
+            }
+        }
+    }
+
+    private void reject(Identity id, Column col, Object value, Exception error) {
+        synchronized(rejected) {
+            rejected.add(new RejectedSet(id, col, value, error));
+        }
+    }
+
+    /**
+     * Check if a set failed in a way that retrying cannot fix, e.g. a constraint violation or a value
+     * too long for its column. Connection problems, deadlocks, timeouts and non-SQL errors count as transient.
+     */
+    private static boolean isPermanent(Exception e) {
+        Throwable cause = e;
+        while(cause != null && !(cause instanceof SQLException))
+            cause = cause.getCause();
+
+        if(cause == null || cause instanceof SQLNonTransientConnectionException)
+            return false;
+
+        if(cause instanceof SQLNonTransientException)
+            return true;
+
+        // drivers do not always use the exception subclasses, e.g. for batches; check for data exception or integrity constraint violation
+        String state = ((SQLException)cause).getSQLState();
+        return state != null && (state.startsWith("22") || state.startsWith("23"));
+    }
+}
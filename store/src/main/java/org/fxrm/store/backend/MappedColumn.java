@@ -0,0 +1,164 @@
+/**
+ * Copyright 2011, Nick Matantsev
+ * Dual-licensed under the MIT or GPL Version 2 licenses.
+ */
+
+package org.fxrm.store.backend;
+
+import org.fxrm.store.Backend;
+import org.fxrm.store.Store;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * Column wrapper that remembers the object mapping arguments it was created with. Used by backend decorators
+ * that write column values into local files and need to resolve the columns again after a restart.
+ * Values are written using the same type conventions as MySQLBackend.
+ */
+class MappedColumn implements Backend.Column {
+    final Backend.Column column;
+    final Class objectClass;
+    final String propertyName;
+    final Class valueClass; // referenced class for identity columns
+    final boolean isIdentity;
+
+    private MappedColumn(Backend.Column column, Class objectClass, String propertyName, Class valueClass, boolean isIdentity) {
+        this.column = column;
+        this.objectClass = objectClass;
+        this.propertyName = propertyName;
+        this.valueClass = valueClass;
+        this.isIdentity = isIdentity;
+    }
+
+    static MappedColumn create(Store.ObjectMapping naming, Object objectClass, String propertyName, Class valueClass, boolean isIdentity) {
+        if(!(objectClass instanceof Class))
+            throw new Store.ConfigurationException("object class must be a Class: " + objectClass);
+
+        Backend.Column column = isIdentity ?
+                naming.getIdentityColumn(objectClass, propertyName, valueClass) :
+                naming.getSimpleColumn(objectClass, propertyName, valueClass);
+
+        return new MappedColumn(column, (Class)objectClass, propertyName, valueClass, isIdentity);
+    }
+
+    /**
+     * Get the wrapper of a column passed back into the decorator. Columns that were created by another object mapping
+     * mean that the store was not created with the decorator as its naming.
+     */
+    static MappedColumn cast(Backend.Column col, Object decorator) {
+        if(!(col instanceof MappedColumn))
+            throw new Store.ConfigurationException("column was not created by " + decorator.getClass().getSimpleName() + " - create the store with it as both backend and object mapping");
+
+        return (MappedColumn)col;
+    }
+
+    static Backend.Column unwrap(Backend.Column col) {
+        return col instanceof MappedColumn ? ((MappedColumn)col).column : col;
+    }
+
+    static Backend.Column[] unwrap(Backend.Column[] cols) {
+        Backend.Column[] result = new Backend.Column[cols.length];
+        for(int i = 0; i < cols.length; i++)
+            result[i] = unwrap(cols[i]);
+
+        return result;
+    }
+
+    // equal by property, since object mappings may create a new column each time (e.g. when it is read back from a file)
+    @Override
+    public int hashCode() {
+        return objectClass.hashCode() * 31 + propertyName.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if(obj instanceof MappedColumn) {
+            MappedColumn col = (MappedColumn)obj;
+            return col.objectClass == this.objectClass && col.propertyName.equals(this.propertyName);
+        }
+
+        return false;
+    }
+
+    void write(DataOutput out) throws IOException {
+        writeString(out, objectClass.getName());
+        writeString(out, propertyName);
+        writeString(out, valueClass.getName());
+        out.writeBoolean(isIdentity);
+    }
+
+    static MappedColumn read(DataInput in, Store.ObjectMapping naming) throws IOException, ClassNotFoundException {
+        Class objectClass = loadClass(readString(in));
+        String propertyName = readString(in);
+        Class valueClass = loadClass(readString(in));
+        boolean isIdentity = in.readBoolean();
+
+        return create(naming, objectClass, propertyName, valueClass, isIdentity);
+    }
+
+    /**
+     * Write an identity of this column's object class. External IDs must survive a round-trip through toString().
+     */
+    void writeIdentity(DataOutput out, Backend.Identity id, Store.ObjectMapping naming) throws IOException {
+        writeString(out, naming.extern(id).toString());
+    }
+
+    Backend.Identity readIdentity(DataInput in, Store.ObjectMapping naming) throws IOException {
+        return naming.intern(objectClass, readString(in));
+    }
+
+    void writeValue(DataOutput out, Object value, Store.ObjectMapping naming) throws IOException {
+        out.writeBoolean(value != null);
+        if(value == null)
+            return;
+
+        if(isIdentity)
+            writeString(out, naming.extern((Backend.Identity)value).toString());
+        else if(valueClass == Integer.class)
+            out.writeInt((Integer)value);
+        else if(valueClass == Date.class)
+            out.writeLong(((Date)value).getTime());
+        else if(valueClass.isEnum())
+            writeString(out, ((Enum)value).name());
+        else
+            writeString(out, value.toString());
+    }
+
+    Object readValue(DataInput in, Store.ObjectMapping naming) throws Exception {
+        if(!in.readBoolean())
+            return null;
+
+        if(isIdentity)
+            return naming.intern(valueClass, readString(in));
+        else if(valueClass == Integer.class)
+            return Integer.valueOf(in.readInt());
+        else if(valueClass == Date.class)
+            return new Date(in.readLong());
+        else if(valueClass.isEnum())
+            return Enum.valueOf(valueClass, readString(in));
+        else if(valueClass == String.class)
+            return readString(in);
+        else
+            return valueClass.getConstructor(String.class).newInstance(readString(in));
+    }
+
+    // unlike writeUTF, not limited to 64K (list columns can be long)
+    static void writeString(DataOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static Class loadClass(String name) throws ClassNotFoundException {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        return Class.forName(name, false, loader != null ? loader : MappedColumn.class.getClassLoader());
+    }
+}
@@ -0,0 +1,1072 @@
+/**
+ * Copyright 2011, Nick Matantsev
+ * Dual-licensed under the MIT or GPL Version 2 licenses.
+ */
+
+package org.fxrm.store.backend;
+
+import org.fxrm.store.Backend;
+import org.fxrm.store.Store;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.sql.DataSource;
+
+/**
+ * Simple MySQL data store backend.
+ * Statements are cancelled when the deadline of the data interface call runs out (see Store.Deadline).
+ */
+public class MySQLBackend implements Backend {
+    private static final int SCAN_CHUNK_SIZE = 10000;
+    private static final int IN_LIST_CHUNK_SIZE = 1000; // values of a finder collection argument per statement (server allows 65535 placeholders)
+    private static final int DEFAULT_HEDGE_BUDGET_PERCENT = 5;
+    private static final int HEDGE_BURST = 10; // hedges allowed at once after a quiet period
+    private static final int MAX_WORKERS = 32;
+
+    // fires statement cancellations and hedged reads, which then run on worker threads (cancelling may block)
+    // NOTE: worker count is bounded, since many calls time out at once exactly when the database is struggling
+    private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, daemonThreads("fxrm-mysql-timer"));
+    private static final ThreadPoolExecutor WORKERS = new ThreadPoolExecutor(0, MAX_WORKERS, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), daemonThreads("fxrm-mysql-worker"));
+
+    static {
+        TIMER.setRemoveOnCancelPolicy(true);
+    }
+
+    private final DataSource ds;
+    private final DataSource hedge;
+    private final long hedgeDelayNanos;
+    private final int hedgeBudgetPercent;
+    private final AtomicInteger hedgeCredit; // in hundredths of a hedge
+    private volatile SQLStatistics statistics = null;
+
+    public MySQLBackend(DataSource ds) {
+        this(ds, null, 0);
+    }
+
+    /**
+     * Create a backend with hedged reads: when a get or find takes longer than the hedge delay, the same
+     * statement is also sent to the hedge data source, and whichever result comes first is used while
+     * the other statement is cancelled. The hedge data source must see the same data (e.g. a separate
+     * connection pool to the same server, or a replica if slightly stale reads are acceptable).
+     * @param ds data source for all statements
+     * @param hedge data source for hedged reads
+     * @param hedgeDelayMillis time to wait before hedging a read, e.g. its usual 95th percentile latency
+     */
+    public MySQLBackend(DataSource ds, DataSource hedge, long hedgeDelayMillis) {
+        this(ds, hedge, hedgeDelayMillis, DEFAULT_HEDGE_BUDGET_PERCENT);
+    }
+
+    /**
+     * Create a backend with hedged reads, hedging at most the given share of reads. Reads that are due
+     * for a hedge beyond the budget (or while all worker threads are busy) just wait for their primary
+     * statement, so that a slow database does not receive even more load.
+     * @param ds data source for all statements
+     * @param hedge data source for hedged reads
+     * @param hedgeDelayMillis time to wait before hedging a read, e.g. its usual 95th percentile latency
+     * @param hedgeBudgetPercent maximum percentage of reads to hedge (5 by default)
+     */
+    public MySQLBackend(DataSource ds, DataSource hedge, long hedgeDelayMillis, int hedgeBudgetPercent) {
+        if(hedgeBudgetPercent < 1 || hedgeBudgetPercent > 100)
+            throw new IllegalArgumentException("hedge budget must be between 1 and 100 percent");
+
+        this.ds = ds;
+        this.hedge = hedge;
+        this.hedgeDelayNanos = hedgeDelayMillis * 1000000;
+        this.hedgeBudgetPercent = hedgeBudgetPercent;
+        this.hedgeCredit = new AtomicInteger(HEDGE_BURST * 100);
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    private static String bt(String nativeName) {
+        return nativeName.replace("`", "``");
+    }
+
+    public class IdentityImpl implements Backend.Identity {
+        private final String table;
+        private final int rowId;
+
+        private IdentityImpl(String table, int rowId) {
+            this.table = table;
+            this.rowId = rowId;
+        }
+
+        @Override
+        public int hashCode() {
+            return rowId;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(obj instanceof IdentityImpl) {
+                IdentityImpl id = (IdentityImpl)obj;
+                return id.rowId == this.rowId && id.table.equals(this.table);
+            }
+
+            return false;
+        }
+    }
+
+    public abstract class ColumnImpl implements Backend.Column {
+        protected final String table, column, idColumn;
+
+        private ColumnImpl(String table, String idColumn, String column) {
+            this.table = table;
+            this.column = column;
+            this.idColumn = idColumn;
+        }
+
+        @Override
+        public int hashCode() {
+            return table.hashCode() * 31 + column.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(obj instanceof ColumnImpl) {
+                ColumnImpl col = (ColumnImpl)obj;
+                return col.column.equals(this.column) && col.table.equals(this.table);
+            }
+
+            return false;
+        }
+
+        abstract Object readValue(ResultSet rs, int i) throws SQLException, NoSuchMethodException, InstantiationException, IllegalAccessException, InvocationTargetException;
+        abstract void setValue(PreparedStatement ps, int i, Object value) throws SQLException;
+    }
+
+    /**
+     * Sets statement parameters. May be called more than once, e.g. to also EXPLAIN the same statement from a worker thread.
+     */
+    private interface Binder {
+        void bind(PreparedStatement ps) throws SQLException;
+    }
+
+    /**
+     * Converts result rows one by one. Must not have side effects, since hedged reads may run it twice.
+     */
+    private interface RowReader {
+        Object row(ResultSet rs) throws Exception;
+    }
+
+    /**
+     * Statement execution that may be cancelled from another thread.
+     */
+    private static class Attempt implements Runnable {
+        private PreparedStatement statement = null;
+        private boolean cancelled = false;
+
+        synchronized void start(PreparedStatement ps) throws SQLException {
+            if(cancelled)
+                throw new SQLException("statement cancelled");
+
+            statement = ps;
+        }
+
+        synchronized void finish() {
+            statement = null;
+        }
+
+        synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        // NOTE: cancelling under lock, so that the connection is not reused by the time the cancellation reaches the server
+        public synchronized void run() {
+            cancelled = true;
+            if(statement == null)
+                return;
+
+            try {
+                statement.cancel();
+            } catch(SQLException e) {
+                // statement is failing or completing anyway
+            }
+        }
+    }
+
+    /**
+     * State of a hedged read. The first statement to complete wins.
+     */
+    private static class Race {
+        private boolean done = false;
+        private boolean hedgeRunning = false;
+        private List<Object> result = null;
+
+        synchronized boolean win(List<Object> rows) {
+            if(done)
+                return false;
+
+            done = true;
+            result = rows;
+            notifyAll();
+            return true;
+        }
+
+        synchronized boolean startHedge() {
+            if(done)
+                return false;
+
+            hedgeRunning = true;
+            return true;
+        }
+
+        synchronized void hedgeFailed() {
+            hedgeRunning = false;
+            notifyAll();
+        }
+
+        /**
+         * End the race after the primary statement failed, waiting for the hedge if it is running.
+         * @return hedge result, or null if there is none
+         */
+        synchronized List<Object> primaryFailed() throws InterruptedException {
+            while(!done && hedgeRunning)
+                wait();
+
+            done = true;
+            return result;
+        }
+    }
+
+    private static final Binder NO_PARAMETERS = new Binder() {
+        public void bind(PreparedStatement ps) {
+        }
+    };
+
+    /**
+     * Collect execution statistics for every statement issued by this backend.
+     * @param statistics statistics collector, or null to stop collecting
+     */
+    public void setStatistics(SQLStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    private List<Object> query(final String sql, final Binder binder, final RowReader reader) throws Exception {
+        long remaining = getRemainingNanos();
+
+        if(hedge == null) {
+            Attempt attempt = new Attempt();
+            ScheduledFuture timer = schedule(attempt, remaining, true);
+            try {
+                return execute(ds, sql, binder, reader, attempt);
+            } catch(SQLException e) {
+                throw timeout(e, attempt);
+            } finally {
+                unschedule(timer);
+            }
+        }
+
+        earnHedgeCredit();
+
+        final Race race = new Race();
+        final Attempt primary = new Attempt();
+        final Attempt secondary = new Attempt();
+
+        ScheduledFuture hedgeTimer = schedule(new Runnable() {
+            public void run() {
+                if(!race.startHedge())
+                    return;
+
+                if(!spendHedgeCredit()) {
+                    race.hedgeFailed();
+                    return;
+                }
+
+                try {
+                    if(race.win(execute(hedge, sql, binder, reader, secondary)))
+                        primary.run();
+                } catch(Exception e) {
+                    race.hedgeFailed();
+                }
+            }
+        }, hedgeDelayNanos, false);
+
+        ScheduledFuture deadlineTimer = schedule(new Runnable() {
+            public void run() {
+                primary.run();
+                secondary.run();
+            }
+        }, remaining, true);
+
+        try {
+            List<Object> rows = execute(ds, sql, binder, reader, primary);
+            race.win(rows);
+            secondary.run();
+            return rows;
+        } catch(Exception e) {
+            // primary may have been cancelled because the hedge won
+            List<Object> rows = race.primaryFailed();
+            if(rows != null)
+                return rows;
+
+            throw e instanceof SQLException ? timeout((SQLException)e, primary) : e;
+        } finally {
+            unschedule(hedgeTimer);
+            unschedule(deadlineTimer);
+        }
+    }
+
+    private void earnHedgeCredit() {
+        while(true) {
+            int credit = hedgeCredit.get();
+            if(credit >= HEDGE_BURST * 100 || hedgeCredit.compareAndSet(credit, Math.min(credit + hedgeBudgetPercent, HEDGE_BURST * 100)))
+                return;
+        }
+    }
+
+    private boolean spendHedgeCredit() {
+        while(true) {
+            int credit = hedgeCredit.get();
+            if(credit < 100)
+                return false;
+
+            if(hedgeCredit.compareAndSet(credit, credit - 100))
+                return true;
+        }
+    }
+
+    private List<Object> execute(DataSource source, String sql, Binder binder, RowReader reader, Attempt attempt) throws Exception {
+        Connection conn = source.getConnection();
+        long start = System.nanoTime();
+        ArrayList<Object> rows = new ArrayList<Object>();
+        boolean failed = true;
+        try {
+            PreparedStatement ps = conn.prepareStatement(sql);
+            binder.bind(ps);
+
+            attempt.start(ps);
+            try {
+                ps.execute();
+
+                ResultSet rs = ps.getResultSet();
+                while(rs.next())
+                    rows.add(reader.row(rs));
+            } finally {
+                attempt.finish();
+            }
+
+            failed = false;
+            return rows;
+        } finally {
+            trace(sql, binder, System.nanoTime() - start, rows.size(), failed);
+            conn.close();
+        }
+    }
+
+    private int update(String sql, Binder binder) throws Exception {
+        long remaining = getRemainingNanos();
+        Attempt attempt = new Attempt();
+
+        Connection conn = ds.getConnection();
+        ScheduledFuture timer = schedule(attempt, remaining, true);
+        long start = System.nanoTime();
+        int rows = 0;
+        boolean failed = true;
+        try {
+            PreparedStatement ps = conn.prepareStatement(sql);
+            binder.bind(ps);
+
+            attempt.start(ps);
+            try {
+                rows = ps.executeUpdate();
+            } finally {
+                attempt.finish();
+            }
+
+            failed = false;
+            return rows;
+        } catch(SQLException e) {
+            throw timeout(e, attempt);
+        } finally {
+            unschedule(timer);
+            trace(sql, binder, System.nanoTime() - start, rows, failed);
+            conn.close();
+        }
+    }
+
+    private static long getRemainingNanos() {
+        long remaining = Store.getRemainingNanos();
+        if(remaining <= 0)
+            throw new Store.TimeoutException(null);
+
+        return remaining;
+    }
+
+    /**
+     * Run the task on a worker thread after the given delay.
+     * @param required true for deadline cancellations, which run on the timer thread when all workers are busy;
+     *        other tasks (i.e. hedges) are skipped then
+     */
+    private static ScheduledFuture schedule(final Runnable task, long delayNanos, final boolean required) {
+        if(delayNanos == Long.MAX_VALUE)
+            return null;
+
+        return TIMER.schedule(new Runnable() {
+            public void run() {
+                try {
+                    WORKERS.execute(task);
+                } catch(RejectedExecutionException e) {
+                    if(required)
+                        task.run();
+                }
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static void unschedule(ScheduledFuture timer) {
+        if(timer != null)
+            timer.cancel(false);
+    }
+
+    private static Exception timeout(SQLException e, Attempt attempt) {
+        return attempt.isCancelled() || e instanceof SQLTimeoutException ? new Store.TimeoutException(e) : e;
+    }
+
+    private void trace(final String sql, final Binder binder, long nanos, long rows, boolean failed) {
+        final SQLStatistics stats = statistics;
+        if(stats == null || !stats.record(sql, nanos, rows, failed))
+            return;
+
+        // capture the plan off the request path, on a connection of its own
+        try {
+            WORKERS.execute(new Runnable() {
+                public void run() {
+                    stats.recordExplain(sql, explain(sql, binder));
+                }
+            });
+        } catch(RejectedExecutionException e) {
+            stats.explainSkipped(sql); // a later slow run captures it instead
+        }
+    }
+
+    private String explain(String sql, Binder binder) {
+        try {
+            Connection conn = ds.getConnection();
+            try {
+                PreparedStatement ps = conn.prepareStatement("explain " + sql);
+                try {
+                    binder.bind(ps);
+                    ResultSet rs = ps.executeQuery();
+                    ResultSetMetaData meta = rs.getMetaData();
+
+                    // tab-separated table with a header line
+                    StringBuffer sb = new StringBuffer();
+                    for(int i = 1; i <= meta.getColumnCount(); i++)
+                        sb.append(i == 1 ? "" : "\t").append(meta.getColumnLabel(i));
+                    sb.append('\n');
+
+                    while(rs.next()) {
+                        for(int i = 1; i <= meta.getColumnCount(); i++)
+                            sb.append(i == 1 ? "" : "\t").append(rs.getString(i));
+                        sb.append('\n');
+                    }
+
+                    return sb.toString();
+                } finally {
+                    ps.close();
+                }
+            } finally {
+                conn.close();
+            }
+        } catch(SQLException e) {
+            return "explain failed: " + e.getMessage(); // diagnostics must not break the actual operation
+        }
+    }
+
+    @Override
+    public Object get(Identity pid, Column pcol) throws Exception {
+        final ColumnImpl col = (ColumnImpl)pcol;
+        final String sql = "select `" + bt(col.column) + "` from `" + bt(col.table) + "` where `" + bt(col.idColumn) + "` = ?";
+
+        final IdentityImpl id = (IdentityImpl)pid;
+
+        List<Object> rows = query(sql, new Binder() {
+            public void bind(PreparedStatement ps) throws SQLException {
+                ps.setInt(1, id.rowId);
+            }
+        }, new RowReader() {
+            public Object row(ResultSet rs) throws Exception {
+                return col.readValue(rs, 1);
+            }
+        });
+
+        if(rows.isEmpty())
+            throw new RuntimeException("object ID not found"); // TODO: dedicated error
+
+        return rows.get(0);
+    }
+
+    public Object[] getAll(Identity[] pids, Column pcol) throws Exception {
+        final ColumnImpl col = (ColumnImpl)pcol;
+
+        // one statement per chunk of IDs, to stay within the server's placeholder limit
+        HashMap<Integer, Object> values = new HashMap<Integer, Object>();
+        for(int start = 0; start < pids.length; start += IN_LIST_CHUNK_SIZE) {
+            final IdentityImpl[] ids = new IdentityImpl[Math.min(IN_LIST_CHUNK_SIZE, pids.length - start)];
+            for(int i = 0; i < ids.length; i++)
+                ids[i] = (IdentityImpl)pids[start + i];
+
+            final String sql;
+            {
+                StringBuffer sb = new StringBuffer();
+                sb.append("select `").append(bt(col.idColumn)).append("`, `").append(bt(col.column)).append("` from `").append(bt(col.table));
+                sb.append("` where `").append(bt(col.idColumn)).append("` in (");
+                for(int i = 0; i < ids.length; i++)
+                    sb.append(i == 0 ? "?" : ", ?");
+                sb.append(")");
+                sql = sb.toString();
+            }
+
+            List<Object> rows = query(sql, new Binder() {
+                public void bind(PreparedStatement ps) throws SQLException {
+                    for(int i = 0; i < ids.length; i++)
+                        ps.setInt(i + 1, ids[i].rowId);
+                }
+            }, new RowReader() {
+                public Object row(ResultSet rs) throws Exception {
+                    return new Object[] { rs.getInt(1), col.readValue(rs, 2) };
+                }
+            });
+
+            for(Object row: rows)
+                values.put((Integer)((Object[])row)[0], ((Object[])row)[1]);
+        }
+
+        Object[] result = new Object[pids.length];
+        for(int i = 0; i < pids.length; i++)
+            result[i] = values.get(((IdentityImpl)pids[i]).rowId);
+
+        return result;
+    }
+
+    public void set(Identity pid, Column pcol, Object value) throws Exception {
+        ColumnImpl col = (ColumnImpl)pcol;
+        update(setSql(col), setBinder(col, (IdentityImpl)pid, value));
+
+        // TODO: verify num updated rows?
+    }
+
+    /**
+     * Sends one JDBC batch per column over a single connection. With Connector/J, add
+     * rewriteBatchedStatements=true to the connection URL to send each batch in one round trip.
+     */
+    public void setAll(Identity[] pids, Column[] pcols, Object[] values) throws Exception {
+        // group by column in order of first appearance, which keeps sets of the same property in order
+        LinkedHashMap<ColumnImpl, List<Integer>> byColumn = new LinkedHashMap<ColumnImpl, List<Integer>>();
+        for(int i = 0; i < pids.length; i++) {
+            List<Integer> list = byColumn.get((ColumnImpl)pcols[i]);
+            if(list == null) {
+                list = new ArrayList<Integer>();
+                byColumn.put((ColumnImpl)pcols[i], list);
+            }
+
+            list.add(i);
+        }
+
+        if(byColumn.isEmpty())
+            return;
+
+        long remaining = getRemainingNanos();
+        Attempt attempt = new Attempt();
+
+        Connection conn = ds.getConnection();
+        ScheduledFuture timer = schedule(attempt, remaining, true);
+        try {
+            for(Map.Entry<ColumnImpl, List<Integer>> group: byColumn.entrySet())
+                updateBatch(conn, group.getKey(), group.getValue(), pids, values, attempt);
+        } catch(SQLException e) {
+            throw timeout(e, attempt);
+        } finally {
+            unschedule(timer);
+            conn.close();
+        }
+    }
+
+    private void updateBatch(Connection conn, ColumnImpl col, List<Integer> indexes, Identity[] pids, Object[] values, Attempt attempt) throws SQLException {
+        String sql = setSql(col);
+        long start = System.nanoTime();
+        long rows = 0;
+        boolean failed = true;
+
+        PreparedStatement ps = conn.prepareStatement(sql);
+        try {
+            for(int i: indexes) {
+                setBinder(col, (IdentityImpl)pids[i], values[i]).bind(ps);
+                ps.addBatch();
+            }
+
+            attempt.start(ps);
+            try {
+                for(int count: ps.executeBatch())
+                    rows += Math.max(count, 0); // driver may not report counts
+            } finally {
+                attempt.finish();
+            }
+
+            failed = false;
+        } finally {
+            ps.close();
+
+            // first set stands in for the whole batch when explaining
+            int first = indexes.get(0);
+            trace(sql, setBinder(col, (IdentityImpl)pids[first], values[first]), System.nanoTime() - start, rows, failed);
+        }
+    }
+
+    private static String setSql(ColumnImpl col) {
+        return "update `" + bt(col.table) + "` set `" + bt(col.column) + "` = ? where `" + bt(col.idColumn) + "` = ?";
+    }
+
+    private static Binder setBinder(final ColumnImpl col, final IdentityImpl id, final Object value) {
+        return new Binder() {
+            public void bind(PreparedStatement ps) throws SQLException {
+                col.setValue(ps, 1, value);
+                ps.setInt(2, id.rowId);
+            }
+        };
+    }
+
+    public void append(Identity pid, Column pcol, final String item) throws Exception {
+        final ColumnImpl col = (ColumnImpl)pcol;
+        final String sql = "update `" + bt(col.table) + "` set `" + bt(col.column) + "` = concat(coalesce(`" + bt(col.column) + "`, ''), ?) where `" + bt(col.idColumn) + "` = ?";
+
+        final IdentityImpl id = (IdentityImpl)pid;
+
+        update(sql, new Binder() {
+            public void bind(PreparedStatement ps) throws SQLException {
+                ps.setString(1, item + "\n");
+                ps.setInt(2, id.rowId);
+            }
+        });
+    }
+
+    public void remove(Identity pid, Column pcol, String item) throws Exception {
+        final ColumnImpl col = (ColumnImpl)pcol;
+
+        // prefix the list with a newline so that every item is found as "\n<item>\n", then cut that back to "\n"
+        // work on binary strings, since the column collation may be case-insensitive; positions are then in bytes
+        // NOTE: insert() returns the string unchanged when locate() finds nothing
+        final String list = "cast(concat(?, `" + bt(col.column) + "`) as binary)";
+        final String sql = "update `" + bt(col.table) + "` set `" + bt(col.column) + "` = substring(insert(" + list + ", locate(cast(? as binary), " + list + "), length(?), ?), 2) where `" + bt(col.idColumn) + "` = ?";
+
+        final IdentityImpl id = (IdentityImpl)pid;
+        final String needle = "\n" + item + "\n";
+
+        update(sql, new Binder() {
+            public void bind(PreparedStatement ps) throws SQLException {
+                ps.setString(1, "\n");
+                ps.setString(2, needle);
+                ps.setString(3, "\n");
+                ps.setString(4, needle);
+                ps.setString(5, "\n");
+                ps.setInt(6, id.rowId);
+            }
+        });
+    }
+
+    private static void appendCriteria(StringBuffer sb, Column[] cols, Object[] args) {
+        // TODO: make sure table name is consistent, but return empty result instead of throwing exception otherwise! (technically legal arguments)
+        for(int i = 0; i < cols.length; i++) {
+            String column = "`" + bt(((ColumnImpl)cols[i]).column) + "`";
+            sb.append(i == 0 ? "" : " and ");
+
+            if(args[i] instanceof Collection) {
+                // match any of the listed values, with nulls needing a separate check
+                Collection values = (Collection)args[i];
+                int nonNullCount = 0;
+                for(Object v: values) {
+                    if(v != null)
+                        nonNullCount++;
+                }
+
+                sb.append("(");
+                if(nonNullCount > 0) {
+                    sb.append(column).append(" in (");
+                    for(int j = 0; j < nonNullCount; j++)
+                        sb.append(j == 0 ? "?" : ", ?");
+                    sb.append(")");
+                } else {
+                    sb.append("0 = 1");
+                }
+
+                if(nonNullCount < values.size())
+                    sb.append(" or ").append(column).append(" is null");
+                sb.append(")");
+            } else {
+                sb.append(column).append(args[i] == null ? " is null" : " = ?");
+            }
+        }
+    }
+
+    private static void setCriteria(PreparedStatement ps, Column[] cols, Object[] args) throws SQLException {
+        int argIndex = 1;
+        for(int i = 0; i < cols.length; i++) {
+            // NULL arguments do not need to be set
+            if(args[i] == null)
+                continue;
+
+            if(args[i] instanceof Collection) {
+                for(Object v: (Collection)args[i]) {
+                    if(v == null)
+                        continue;
+
+                    ((ColumnImpl)cols[i]).setValue(ps, argIndex, v);
+                    argIndex++;
+                }
+            } else {
+                ((ColumnImpl)cols[i]).setValue(ps, argIndex, args[i]);
+                argIndex++;
+            }
+        }
+    }
+
+    private static Binder criteriaBinder(final Column[] cols, final Object[] args) {
+        return new Binder() {
+            public void bind(PreparedStatement ps) throws SQLException {
+                setCriteria(ps, cols, args);
+            }
+        };
+    }
+
+    /**
+     * Split finder arguments so that no statement gets more than IN_LIST_CHUNK_SIZE values of a collection argument.
+     * Chunks get distinct values (and at most one of them a null), so that they match disjoint rows.
+     */
+    private static List<Object[]> chunkCriteria(Object[] args) {
+        int chunked = -1;
+        for(int i = 0; i < args.length; i++) {
+            if(args[i] instanceof Collection && ((Collection)args[i]).size() > IN_LIST_CHUNK_SIZE) {
+                if(chunked >= 0)
+                    throw new IllegalArgumentException("only one finder collection argument may have more than " + IN_LIST_CHUNK_SIZE + " values");
+
+                chunked = i;
+            }
+        }
+
+        if(chunked < 0)
+            return Collections.singletonList(args);
+
+        ArrayList<Object> values = new ArrayList<Object>(new LinkedHashSet<Object>((Collection)args[chunked]));
+        ArrayList<Object[]> result = new ArrayList<Object[]>();
+        for(int start = 0; start < values.size(); start += IN_LIST_CHUNK_SIZE) {
+            Object[] chunkArgs = args.clone();
+            chunkArgs[chunked] = values.subList(start, Math.min(start + IN_LIST_CHUNK_SIZE, values.size()));
+            result.add(chunkArgs);
+        }
+
+        return result;
+    }
+
+    public Collection<Identity> find(final Column[] cols, Object[] args) throws Exception {
+        final String table = ((ColumnImpl)cols[0]).table;
+        String idCol = ((ColumnImpl)cols[0]).idColumn;
+
+        RowReader reader = new RowReader() {
+            public Object row(ResultSet rs) throws SQLException {
+                return new IdentityImpl(table, rs.getInt(1));
+            }
+        };
+
+        ArrayList<Identity> result = new ArrayList<Identity>();
+        for(Object[] chunkArgs: chunkCriteria(args)) {
+            StringBuffer sb = new StringBuffer();
+            sb.append("select `" + bt(idCol) + "` from `").append(bt(table)).append("` where ");
+            appendCriteria(sb, cols, chunkArgs);
+
+            result.addAll((Collection)query(sb.toString(), criteriaBinder(cols, chunkArgs), reader));
+        }
+
+        return result;
+    }
+
+    public int count(Column[] cols, Object[] args) throws Exception {
+        RowReader reader = new RowReader() {
+            public Object row(ResultSet rs) throws SQLException {
+                return rs.getInt(1);
+            }
+        };
+
+        int result = 0;
+        for(Object[] chunkArgs: chunkCriteria(args)) {
+            StringBuffer sb = new StringBuffer();
+            sb.append("select count(*) from `").append(bt(((ColumnImpl)cols[0]).table)).append("` where ");
+            appendCriteria(sb, cols, chunkArgs);
+
+            result += (Integer)query(sb.toString(), criteriaBinder(cols, chunkArgs), reader).get(0);
+        }
+
+        return result;
+    }
+
+    public boolean exists(Column[] cols, Object[] args) throws Exception {
+        RowReader reader = new RowReader() {
+            public Object row(ResultSet rs) {
+                return Boolean.TRUE;
+            }
+        };
+
+        for(Object[] chunkArgs: chunkCriteria(args)) {
+            StringBuffer sb = new StringBuffer();
+            sb.append("select 1 from `").append(bt(((ColumnImpl)cols[0]).table)).append("` where ");
+            appendCriteria(sb, cols, chunkArgs);
+            sb.append(" limit 1");
+
+            if(!query(sb.toString(), criteriaBinder(cols, chunkArgs), reader).isEmpty())
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Scans in keyset-paginated chunks: each chunk is read in full and its statement completed
+     * before the handler sees the rows, so the handler does not hold a statement open
+     * and each chunk runs under the call's deadline like any other read.
+     */
+    public void scan(final Column[] cols, ScanHandler handler) throws Exception {
+        final String table = ((ColumnImpl)cols[0]).table;
+        String idCol = ((ColumnImpl)cols[0]).idColumn;
+
+        for(Column col: cols) {
+            if(!((ColumnImpl)col).table.equals(table) || !((ColumnImpl)col).idColumn.equals(idCol))
+                throw new Store.ConfigurationException("scanned columns must belong to the same table: " + table + ", " + ((ColumnImpl)col).table);
+        }
+
+        // keyset pagination by row ID, so that each chunk is an index range scan
+        final String sql;
+        {
+            StringBuffer sb = new StringBuffer();
+            sb.append("select `").append(bt(idCol)).append("`");
+            for(Column col: cols)
+                sb.append(", `").append(bt(((ColumnImpl)col).column)).append("`");
+            sb.append(" from `").append(bt(table)).append("` where `").append(bt(idCol)).append("` > ?");
+            sb.append(" order by `").append(bt(idCol)).append("` limit ").append(SCAN_CHUNK_SIZE);
+            sql = sb.toString();
+        }
+
+        RowReader reader = new RowReader() {
+            public Object row(ResultSet rs) throws Exception {
+                Object[] row = new Object[cols.length + 1];
+                row[0] = rs.getInt(1);
+                for(int i = 0; i < cols.length; i++)
+                    row[i + 1] = ((ColumnImpl)cols[i]).readValue(rs, i + 2);
+
+                return row;
+            }
+        };
+
+        int lastId = Integer.MIN_VALUE;
+        while(true) {
+            final int chunkStart = lastId;
+            List<Object> rows = query(sql, new Binder() {
+                public void bind(PreparedStatement ps) throws SQLException {
+                    ps.setInt(1, chunkStart);
+                }
+            }, reader);
+
+            for(Object row: rows) {
+                Object[] values = new Object[cols.length];
+                System.arraycopy((Object[])row, 1, values, 0, cols.length);
+
+                lastId = (Integer)((Object[])row)[0];
+                handler.row(new IdentityImpl(table, lastId), values);
+            }
+
+            if(rows.size() < SCAN_CHUNK_SIZE)
+                break;
+        }
+    }
+
+    public Identity createIdentity(String table, String idCol) throws Exception {
+        final String sql = "insert into `" + bt(table) + "` (`" + bt(idCol) + "`) values (NULL)";
+
+        long remaining = getRemainingNanos();
+        Attempt attempt = new Attempt();
+
+        Connection conn = ds.getConnection();
+        ScheduledFuture timer = schedule(attempt, remaining, true);
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            CallableStatement cs = conn.prepareCall(sql);
+
+            ResultSet rs;
+            attempt.start(cs);
+            try {
+                cs.execute();
+                rs = cs.getGeneratedKeys();
+            } finally {
+                attempt.finish();
+            }
+
+            if(!rs.next())
+                throw new RuntimeException("no created ID returned"); // TODO: custom error
+
+            failed = false;
+            return new IdentityImpl(table, rs.getInt(1));
+        } catch(SQLException e) {
+            throw timeout(e, attempt);
+        } finally {
+            unschedule(timer);
+            trace(sql, NO_PARAMETERS, System.nanoTime() - start, failed ? 0 : 1, failed);
+            conn.close();
+        }
+    }
+
+    public Identity intern(String table, String externalId) {
+        int id = Integer.parseInt(externalId.toString()); // NOTE: triggering NPE explicitly
+        return new IdentityImpl(table.toString(), id);
+    }
+
+    public String extern(Identity id) {
+        return Integer.toString(((IdentityImpl)id).rowId);
+    }
+
+    public Column createIdentityColumn(String table, String idCol, String field, final Class referenceClass) {
+        // identities are always treated as ints
+        return new ColumnImpl(table, idCol, field) {
+            @Override
+            Object readValue(ResultSet rs, int i) throws SQLException {
+                int r = rs.getInt(i);
+                return rs.wasNull() ? null : new IdentityImpl(table, r);
+            }
+
+            @Override
+            void setValue(PreparedStatement ps, int i, Object value) throws SQLException {
+                ps.setInt(i, ((IdentityImpl)value).rowId);
+            }
+        };
+    }
+
+    public Column createSimpleColumn(String table, String idCol, String field, final Class fieldType) throws NoSuchMethodException {
+        if(fieldType == String.class) {
+
+            // strings correspond to VARCHAR
+            return new ColumnImpl(table, idCol, field) {
+                @Override
+                Object readValue(ResultSet rs, int i) throws SQLException {
+                    return rs.getString(i);
+                }
+
+                @Override
+                void setValue(PreparedStatement ps, int i, Object value) throws SQLException {
+                    if(value == null)
+                        ps.setNull(i, Types.VARCHAR);
+                    else
+                        ps.setString(i, (String)value);
+                }
+            };
+
+        } else if(fieldType == Integer.class) {
+
+            // integers correspond to INT
+            return new ColumnImpl(table, idCol, field) {
+                @Override
+                Object readValue(ResultSet rs, int i) throws SQLException {
+                    int r = rs.getInt(i);
+                    return rs.wasNull() ? null : Integer.valueOf(r);
+                }
+
+                @Override
+                void setValue(PreparedStatement ps, int i, Object value) throws SQLException {
+                    if(value == null)
+                        ps.setNull(i, Types.INTEGER);
+                    else
+                        ps.setInt(i, (Integer)value);
+                }
+            };
+
+        } else if(fieldType == Date.class) {
+
+            // dates are stored as BIGINT milliseconds since epoch
+            return new ColumnImpl(table, idCol, field) {
+                @Override
+                Object readValue(ResultSet rs, int i) throws SQLException {
+                    long r = rs.getLong(i);
+                    return rs.wasNull() ? null : new Date(r);
+                }
+
+                @Override
+                void setValue(PreparedStatement ps, int i, Object value) throws SQLException {
+                    if(value == null)
+                        ps.setNull(i, Types.BIGINT);
+                    else
+                        ps.setLong(i, ((Date)value).getTime());
+                }
+            };
+
+        } else if(fieldType.isEnum()) {
+
+            // each enum is stored as VARCHAR of the value's simple name
+            return new ColumnImpl(table, idCol, field) {
+                @Override
+                Object readValue(ResultSet rs, int i) throws SQLException {
+                    String name = rs.getString(i);
+                    return name == null ? null : Enum.valueOf(fieldType, name);
+                }
+
+                @Override
+                void setValue(PreparedStatement ps, int i, Object value) throws SQLException {
+                    if(value == null)
+                        ps.setNull(i, Types.VARCHAR);
+                    else
+                        ps.setString(i, ((Enum)value).name());
+                }
+            };
+
+        } else {
+
+            // generic values are stored as VARCHAR via their toString() method; when reading, constructor with a single String argument is called
+            final Constructor ctor = fieldType.getConstructor(String.class);
+            return new ColumnImpl(table, idCol, field) {
+                @Override
+                Object readValue(ResultSet rs, int i) throws SQLException, InstantiationException, IllegalAccessException, InvocationTargetException {
+                    String val = rs.getString(i);
+                    return val == null ? null : ctor.newInstance(val);
+                }
+
+                @Override
+                void setValue(PreparedStatement ps, int i, Object value) throws SQLException {
+                    if(value == null)
+                        ps.setNull(i, Types.VARCHAR);
+                    else
+                        ps.setString(i, value.toString());
+                }
+            };
+
+        }
+    }
+}
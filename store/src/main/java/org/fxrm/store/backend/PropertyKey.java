@@ -0,0 +1,36 @@
+/**
+ * Copyright 2011, Nick Matantsev
+ * Dual-licensed under the MIT or GPL Version 2 licenses.
+ */
+
+package org.fxrm.store.backend;
+
+import org.fxrm.store.Backend;
+
+/**
+ * Single property value location (identity and column), used as a map key by backend decorators.
+ */
+class PropertyKey {
+    final Backend.Identity id;
+    final Backend.Column column;
+
+    PropertyKey(Backend.Identity id, Backend.Column column) {
+        this.id = id;
+        this.column = column;
+    }
+
+    @Override
+    public int hashCode() {
+        return id.hashCode() * 31 + column.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if(obj instanceof PropertyKey) {
+            PropertyKey key = (PropertyKey)obj;
+            return key.id.equals(this.id) && key.column.equals(this.column);
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright 2011, Nick Matantsev
+ * Dual-licensed under the MIT or GPL Version 2 licenses.
+ */
+
+package org.fxrm.store.backend;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Per-statement execution statistics collected by MySQLBackend. Statements are grouped by shape,
+ * i.e. the generated SQL with IN-lists of any length collapsed into one. Optionally captures
+ * the EXPLAIN output of statements that run longer than a threshold (once per shape, in the background).
+ */
+public class SQLStatistics {
+    private static final Pattern IN_LIST = Pattern.compile("in \\(\\?(, \\?)*\\)");
+
+    /**
+     * Point-in-time statistics of a single statement shape.
+     */
+    public static class Entry {
+        private final String sql;
+        private final long count, failures, totalNanos, maxNanos, rows;
+        private final String explain;
+
+        private Entry(String sql, long count, long failures, long totalNanos, long maxNanos, long rows, String explain) {
+            this.sql = sql;
+            this.count = count;
+            this.failures = failures;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.rows = rows;
+            this.explain = explain;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Number of executions (included in the count) that failed or ran out of time.
+         */
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        /**
+         * Total rows returned (or affected, for updates).
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        /**
+         * EXPLAIN output captured for a slow execution, or null.
+         */
+        public String getExplain() {
+            return explain;
+        }
+
+        @Override
+        public String toString() {
+            return count + "x (" + failures + " failed), total " + totalNanos / 1000000 + "ms, max " + maxNanos / 1000000 + "ms, " + rows + " rows: " + sql;
+        }
+    }
+
+    private static class Counters {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLong rows = new AtomicLong();
+        private final AtomicBoolean explainClaimed = new AtomicBoolean();
+        private volatile String explain = null;
+    }
+
+    private final ConcurrentHashMap<String, Counters> statements = new ConcurrentHashMap<String, Counters>();
+    private final long explainThresholdNanos;
+
+    /**
+     * Collect statistics without capturing EXPLAIN output.
+     */
+    public SQLStatistics() {
+        this(0);
+    }
+
+    /**
+     * @param explainThresholdMillis minimum execution time that triggers EXPLAIN capture, or 0 to disable
+     */
+    public SQLStatistics(long explainThresholdMillis) {
+        this.explainThresholdNanos = explainThresholdMillis * 1000000;
+    }
+
+    static String getShape(String sql) {
+        // cheap check first, most statements have no IN-lists
+        return sql.indexOf("in (?") < 0 ? sql : IN_LIST.matcher(sql).replaceAll("in (?, ...)");
+    }
+
+    /**
+     * Record a single execution, whether it succeeded or not.
+     * @return true if EXPLAIN output should be captured for this execution; only one execution of each shape gets true
+     */
+    boolean record(String sql, long nanos, long rows, boolean failed) {
+        String shape = getShape(sql);
+
+        Counters c = statements.get(shape);
+        if(c == null) {
+            Counters created = new Counters();
+            c = statements.putIfAbsent(shape, created);
+            if(c == null)
+                c = created;
+        }
+
+        c.count.incrementAndGet();
+        if(failed)
+            c.failures.incrementAndGet();
+        c.totalNanos.addAndGet(nanos);
+        c.rows.addAndGet(rows);
+
+        long max = c.maxNanos.get();
+        while(nanos > max && !c.maxNanos.compareAndSet(max, nanos))
+            max = c.maxNanos.get();
+
+        // one plan per statement shape is enough; failed statements may not have valid parameters for it
+        return explainThresholdNanos > 0 && nanos >= explainThresholdNanos && !failed && c.explainClaimed.compareAndSet(false, true);
+    }
+
+    /**
+     * Give up the EXPLAIN capture claimed by record(), so that a later execution can capture it.
+     */
+    void explainSkipped(String sql) {
+        Counters c = statements.get(getShape(sql));
+        if(c != null)
+            c.explainClaimed.set(false);
+    }
+
+    void recordExplain(String sql, String explain) {
+        Counters c = statements.get(getShape(sql));
+        if(c != null)
+            c.explain = explain;
+    }
+
+    /**
+     * Get statement shapes with the highest total execution time.
+     * @param n maximum number of entries to return
+     * @return entries sorted by total execution time, descending
+     */
+    public List<Entry> getTop(int n) {
+        ArrayList<Entry> result = new ArrayList<Entry>(statements.size());
+        for(Map.Entry<String, Counters> kv: statements.entrySet()) {
+            Counters c = kv.getValue();
+            result.add(new Entry(kv.getKey(), c.count.get(), c.failures.get(), c.totalNanos.get(), c.maxNanos.get(), c.rows.get(), c.explain));
+        }
+
+        Collections.sort(result, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return a.totalNanos < b.totalNanos ? 1 : (a.totalNanos > b.totalNanos ? -1 : 0);
+            }
+        });
+
+        return n < result.size() ? new ArrayList<Entry>(result.subList(0, n)) : result;
+    }
+
+    /**
+     * Discard all collected statistics.
+     */
+    public void reset() {
+        statements.clear();
+    }
+}
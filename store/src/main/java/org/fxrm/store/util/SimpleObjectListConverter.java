@@ -18,7 +18,7 @@ import java.util.List;
  * NOTE: to use this class, declare a sub-class with a no-arg constructor that
  * calls this constructor with the reference to appropriate component type.
  */
-public class SimpleObjectListConverter implements Store.Converter {
+public class SimpleObjectListConverter implements Store.ListConverter {
     private final Class componentClass;
 
     public SimpleObjectListConverter(Class componentClass) {
@@ -52,7 +52,19 @@ public class SimpleObjectListConverter implements Store.Converter {
     public String extern(Object store, Object val) throws Exception {
         StringBuffer out = new StringBuffer();
         for(Object comp: (List<Object>)val)
-            out.append(comp == null ? "" : Store.extern(store, comp)).append('\n');
+            out.append(externItem(store, comp)).append('\n');
         return out.toString();
     }
+
+    @Override
+    public String externItem(Object store, Object item) throws Exception {
+        if(item == null)
+            return "";
+
+        String id = Store.extern(store, item).toString();
+        if(id.indexOf('\n') >= 0)
+            throw new Exception("list item ID must not contain newlines");
+
+        return id;
+    }
 }
@@ -0,0 +1,117 @@
+/**
+ * Copyright 2011, Nick Matantsev
+ * Dual-licensed under the MIT or GPL Version 2 licenses.
+ */
+
+package org.fxrm.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import junit.framework.TestCase;
+
+public class BackendTest extends TestCase {
+    /**
+     * Backend that only implements the basic methods, with a single column.
+     */
+    private static class BasicBackend implements Backend {
+        private final HashMap<Identity, Object> values = new HashMap<Identity, Object>();
+        private final List<Identity> ids = new ArrayList<Identity>();
+        private int sets = 0;
+
+        private Identity create() {
+            Identity id = new Identity() {};
+            ids.add(id);
+            return id;
+        }
+
+        public Object get(Identity id, Column col) {
+            return values.get(id);
+        }
+
+        public void set(Identity id, Column col, Object value) {
+            sets++;
+            values.put(id, value);
+        }
+
+        public Collection<Identity> find(Column[] cols, Object[] args) {
+            ArrayList<Identity> result = new ArrayList<Identity>();
+            for(Identity id: ids) {
+                Object value = values.get(id);
+                if(value == null ? args[0] == null : value.equals(args[0]))
+                    result.add(id);
+            }
+
+            return result;
+        }
+    }
+
+    private BasicBackend backend;
+    private Backend.Column col;
+
+    @Override
+    protected void setUp() {
+        backend = new BasicBackend();
+        col = new Backend.Column() {};
+    }
+
+    public void testGetAllAndSetAll() throws Exception {
+        Backend.Identity a = backend.create();
+        Backend.Identity b = backend.create();
+
+        backend.setAll(new Backend.Identity[] { a, b, a }, new Backend.Column[] { col, col, col }, new Object[] { "x", "y", "z" });
+
+        assertEquals(3, backend.sets);
+        assertEquals(Arrays.<Object>asList("z", "y"), Arrays.asList(backend.getAll(new Backend.Identity[] { a, b }, col)));
+    }
+
+    public void testCountAndExists() throws Exception {
+        backend.set(backend.create(), col, "x");
+        backend.set(backend.create(), col, "x");
+        backend.set(backend.create(), col, "y");
+
+        assertEquals(2, backend.count(new Backend.Column[] { col }, new Object[] { "x" }));
+        assertTrue(backend.exists(new Backend.Column[] { col }, new Object[] { "y" }));
+        assertFalse(backend.exists(new Backend.Column[] { col }, new Object[] { "z" }));
+    }
+
+    public void testAppendAndRemove() throws Exception {
+        Backend.Identity id = backend.create();
+
+        backend.append(id, col, "a");
+        backend.append(id, col, "ab");
+        backend.append(id, col, "b");
+        backend.append(id, col, "b");
+        assertEquals("a\nab\nb\nb\n", backend.get(id, col));
+
+        // only exact items are removed, first occurrence only
+        backend.remove(id, col, "b");
+        assertEquals("a\nab\nb\n", backend.get(id, col));
+        backend.remove(id, col, "a");
+        assertEquals("ab\nb\n", backend.get(id, col));
+        backend.remove(id, col, "c");
+        assertEquals("ab\nb\n", backend.get(id, col));
+    }
+
+    public void testRemoveFromEmptyList() throws Exception {
+        Backend.Identity id = backend.create();
+
+        backend.remove(id, col, "a");
+        assertNull(backend.get(id, col));
+        assertEquals(0, backend.sets);
+    }
+
+    public void testScanIsUnsupported() throws Exception {
+        try {
+            backend.scan(new Backend.Column[] { col }, new Backend.ScanHandler() {
+                public void row(Backend.Identity id, Object[] values) {
+                }
+            });
+            fail("scan needs a way to enumerate identities");
+        } catch(UnsupportedOperationException e) {
+            // expected
+        }
+    }
+}
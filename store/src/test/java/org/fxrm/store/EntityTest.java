@@ -0,0 +1,79 @@
+/**
+ * Copyright 2011, Nick Matantsev
+ * Dual-licensed under the MIT or GPL Version 2 licenses.
+ */
+
+package org.fxrm.store;
+
+import java.lang.ref.WeakReference;
+import junit.framework.TestCase;
+
+public class EntityTest extends TestCase {
+    public static class User extends Store.Entity {
+    }
+
+    public interface Data {
+        String getEmail(User u);
+        void setEmail(User u, String email);
+
+        @Store.Find(by = "email")
+        User findByEmail(String email);
+    }
+
+    private MemoryBackend backend;
+
+    @Override
+    protected void setUp() {
+        backend = new MemoryBackend();
+    }
+
+    public void testIdentityIsEmbedded() {
+        Data data = Store.create(Data.class, backend, backend);
+        User user = new User();
+
+        assertNull(user.storeBinding);
+        data.setEmail(user, "a@example.com");
+
+        assertNotNull(user.storeBinding);
+        assertEquals("1", Store.extern(data, user));
+        assertSame(user, data.findByEmail("a@example.com"));
+        assertSame(user, Store.intern(data, User.class, Store.extern(data, user)));
+    }
+
+    public void testEntitySharedBetweenStores() {
+        MemoryBackend otherBackend = new MemoryBackend();
+        Data data = Store.create(Data.class, backend, backend);
+        Data other = Store.create(Data.class, otherBackend, otherBackend);
+        User user = new User();
+
+        data.setEmail(user, "a@example.com");
+        other.setEmail(user, "b@example.com");
+
+        // second store tracks the entity without the embedded binding
+        assertEquals("a@example.com", data.getEmail(user));
+        assertEquals("b@example.com", other.getEmail(user));
+        assertSame(user, other.findByEmail("b@example.com"));
+    }
+
+    public void testEntityDoesNotKeepStoreReachable() throws Exception {
+        MemoryBackend naming = new MemoryBackend();
+        Data data = Store.create(Data.class, naming, naming);
+        User user = new User();
+        data.setEmail(user, "a@example.com");
+
+        // identity registry refers to the object mapping and finder caches
+        WeakReference<Data> storeRef = new WeakReference<Data>(data);
+        WeakReference<MemoryBackend> namingRef = new WeakReference<MemoryBackend>(naming);
+        data = null;
+        naming = null;
+
+        for(int i = 0; i < 50 && (storeRef.get() != null || namingRef.get() != null); i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        assertNull(storeRef.get());
+        assertNull(namingRef.get());
+        assertNotNull(user.storeBinding);
+    }
+}
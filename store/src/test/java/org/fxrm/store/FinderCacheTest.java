@@ -0,0 +1,76 @@
+/**
+ * Copyright 2011, Nick Matantsev
+ * Dual-licensed under the MIT or GPL Version 2 licenses.
+ */
+
+package org.fxrm.store;
+
+import java.util.Arrays;
+import java.util.Collection;
+import junit.framework.TestCase;
+
+public class FinderCacheTest extends TestCase {
+    public static class User {
+    }
+
+    public interface Data {
+        String getEmail(User u);
+        void setEmail(User u, String email);
+        void setName(User u, String name);
+
+        @Store.Find(by = "email")
+        @Store.Cached
+        Collection<User> findByEmail(String email);
+
+        @Store.Find(by = "email", object = User.class)
+        @Store.Cached
+        int countByEmail(String email);
+    }
+
+    private MemoryBackend backend;
+    private Data data;
+
+    @Override
+    protected void setUp() {
+        // memory backend columns only equal themselves, so the cache must not rely on column equality
+        backend = new MemoryBackend();
+        data = Store.create(Data.class, backend, backend);
+    }
+
+    public void testResultIsCached() {
+        User user = new User();
+        data.setEmail(user, "a@example.com");
+
+        assertEquals(Arrays.asList(user), data.findByEmail("a@example.com"));
+        assertEquals(Arrays.asList(user), data.findByEmail("a@example.com"));
+        assertEquals(1, backend.finds);
+    }
+
+    public void testWriteInvalidates() {
+        User user = new User();
+        data.setEmail(user, "a@example.com");
+        assertEquals(Arrays.asList(user), data.findByEmail("a@example.com"));
+
+        data.setEmail(user, "b@example.com");
+        assertEquals(0, data.findByEmail("a@example.com").size());
+        assertEquals(Arrays.asList(user), data.findByEmail("b@example.com"));
+    }
+
+    public void testOtherPropertyWriteDoesNotInvalidate() {
+        User user = new User();
+        data.setEmail(user, "a@example.com");
+        data.findByEmail("a@example.com");
+
+        data.setName(user, "Alice");
+        data.findByEmail("a@example.com");
+        assertEquals(1, backend.finds);
+    }
+
+    public void testIdentityCreationInvalidates() {
+        assertEquals(0, data.countByEmail(null));
+
+        // new identity has a null email
+        data.setName(new User(), "Bob");
+        assertEquals(1, data.countByEmail(null));
+    }
+}
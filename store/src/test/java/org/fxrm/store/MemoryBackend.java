@@ -0,0 +1,220 @@
+/**
+ * Copyright 2011, Nick Matantsev
+ * Dual-licensed under the MIT or GPL Version 2 licenses.
+ */
+
+package org.fxrm.store;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Map-based backend and object mapping for tests. Like a custom object mapping might, it creates a new column
+ * object on every call, and columns only compare equal to themselves.
+ */
+public class MemoryBackend implements Backend, Store.ObjectMapping {
+    public static class IdentityImpl implements Identity {
+        public final Object objectClass;
+        public final String id;
+
+        private IdentityImpl(Object objectClass, String id) {
+            this.objectClass = objectClass;
+            this.id = id;
+        }
+
+        @Override
+        public int hashCode() {
+            return id.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof IdentityImpl && ((IdentityImpl)obj).objectClass.equals(this.objectClass) && ((IdentityImpl)obj).id.equals(this.id);
+        }
+
+        @Override
+        public String toString() {
+            return id;
+        }
+    }
+
+    public static class ColumnImpl implements Column {
+        public final Object objectClass;
+        public final String name;
+
+        private ColumnImpl(Object objectClass, String name) {
+            this.objectClass = objectClass;
+            this.name = name;
+        }
+    }
+
+    private final HashMap<String, Object> values = new HashMap<String, Object>();
+    private final LinkedHashMap<IdentityImpl, IdentityImpl> identities = new LinkedHashMap<IdentityImpl, IdentityImpl>();
+    private int lastId = 0;
+
+    public volatile int gets = 0;
+    public volatile int sets = 0;
+    public volatile int finds = 0;
+
+    private volatile Object blockedValue = null;
+    private volatile CountDownLatch blockEntered = null;
+    private volatile CountDownLatch blockReleased = null;
+
+    private static String key(Identity id, Column col) {
+        return ((IdentityImpl)id).id + "." + ((ColumnImpl)col).name;
+    }
+
+    /**
+     * Make sets of the given value wait inside the backend until unblock() is called.
+     */
+    public void block(Object value) {
+        blockEntered = new CountDownLatch(1);
+        blockReleased = new CountDownLatch(1);
+        blockedValue = value;
+    }
+
+    public void awaitBlocked() throws InterruptedException {
+        blockEntered.await();
+    }
+
+    public void unblock() {
+        blockedValue = null;
+        blockReleased.countDown();
+    }
+
+    public Object get(Identity id, Column col) {
+        synchronized(this) {
+            gets++;
+            return values.get(key(id, col));
+        }
+    }
+
+    public Object[] getAll(Identity[] ids, Column col) {
+        Object[] result = new Object[ids.length];
+        for(int i = 0; i < ids.length; i++)
+            result[i] = get(ids[i], col);
+        return result;
+    }
+
+    public void set(Identity id, Column col, Object value) throws Exception {
+        Object blocked = blockedValue;
+        if(blocked != null && blocked.equals(value)) {
+            blockEntered.countDown();
+            blockReleased.await();
+        }
+
+        synchronized(this) {
+            sets++;
+            values.put(key(id, col), value);
+        }
+    }
+
+    public void setAll(Identity[] ids, Column[] cols, Object[] values) throws Exception {
+        for(int i = 0; i < ids.length; i++)
+            set(ids[i], cols[i], values[i]);
+    }
+
+    public synchronized void append(Identity id, Column col, String item) {
+        Object list = values.get(key(id, col));
+        values.put(key(id, col), (list == null ? "" : list) + item + "\n");
+    }
+
+    public synchronized void remove(Identity id, Column col, String item) {
+        String list = (String)values.get(key(id, col));
+        if(list == null)
+            return;
+
+        String line = item + "\n";
+        for(int start = 0; start < list.length(); start = list.indexOf('\n', start) + 1) {
+            if(list.startsWith(line, start)) {
+                values.put(key(id, col), list.substring(0, start) + list.substring(start + line.length()));
+                return;
+            }
+        }
+    }
+
+    public synchronized Collection<Identity> find(Column[] cols, Object[] args) {
+        finds++;
+
+        ArrayList<Identity> result = new ArrayList<Identity>();
+        for(IdentityImpl id: identities.keySet()) {
+            if(matches(id, cols, args))
+                result.add(id);
+        }
+
+        return result;
+    }
+
+    private boolean matches(IdentityImpl id, Column[] cols, Object[] args) {
+        for(int i = 0; i < cols.length; i++) {
+            if(!id.objectClass.equals(((ColumnImpl)cols[i]).objectClass))
+                return false;
+
+            Object value = values.get(key(id, cols[i]));
+            if(args[i] instanceof Collection) {
+                if(!((Collection)args[i]).contains(value))
+                    return false;
+            } else if(args[i] == null ? value != null : !args[i].equals(value)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public int count(Column[] cols, Object[] args) {
+        return find(cols, args).size();
+    }
+
+    public boolean exists(Column[] cols, Object[] args) {
+        return !find(cols, args).isEmpty();
+    }
+
+    public void scan(Column[] cols, ScanHandler handler) throws Exception {
+        ArrayList<Identity> ids;
+        synchronized(this) {
+            ids = new ArrayList<Identity>(identities.keySet());
+        }
+
+        for(Identity id: ids) {
+            if(((IdentityImpl)id).objectClass.equals(((ColumnImpl)cols[0]).objectClass))
+                handler.row(id, rowValues(id, cols));
+        }
+    }
+
+    private Object[] rowValues(Identity id, Column[] cols) {
+        Object[] row = new Object[cols.length];
+        for(int i = 0; i < cols.length; i++)
+            row[i] = get(id, cols[i]);
+        return row;
+    }
+
+    public Column getIdentityColumn(Object objectClass, String propertyName, Class referenceClass) {
+        return new ColumnImpl(objectClass, propertyName);
+    }
+
+    public Column getSimpleColumn(Object objectClass, String propertyName, Class valueClass) {
+        return new ColumnImpl(objectClass, propertyName);
+    }
+
+    public synchronized Identity createIdentity(Object objectClass) {
+        return intern(objectClass, Integer.toString(++lastId));
+    }
+
+    public synchronized Identity intern(Object objectClass, Object externalId) {
+        IdentityImpl id = new IdentityImpl(objectClass, externalId.toString());
+        IdentityImpl existing = identities.get(id);
+        if(existing != null)
+            return existing;
+
+        identities.put(id, id);
+        return id;
+    }
+
+    public Object extern(Identity id) {
+        return ((IdentityImpl)id).id;
+    }
+}
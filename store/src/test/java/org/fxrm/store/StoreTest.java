@@ -0,0 +1,203 @@
+/**
+ * Copyright 2011, Nick Matantsev
+ * Dual-licensed under the MIT or GPL Version 2 licenses.
+ */
+
+package org.fxrm.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+
+public class StoreTest extends TestCase {
+    public static class User {
+    }
+
+    public interface Data {
+        String getEmail(User u);
+        void setEmail(User u, String email);
+    }
+
+    /**
+     * Plain string list, one item per line.
+     */
+    public static class TagConverter implements Store.ListConverter {
+        public Object intern(Object store, String val) {
+            ArrayList<String> result = new ArrayList<String>();
+            for(String item: val.split("\n"))
+                if(!item.isEmpty())
+                    result.add(item);
+            return result;
+        }
+
+        public String extern(Object store, Object val) throws Exception {
+            StringBuffer out = new StringBuffer();
+            for(Object item: (List<Object>)val)
+                out.append(externItem(store, item)).append('\n');
+            return out.toString();
+        }
+
+        public String externItem(Object store, Object item) {
+            return (String)item;
+        }
+    }
+
+    @Store.Info(converters = {
+        @Store.Convert(object = User.class, property = "tags", convert = TagConverter.class)
+    })
+    public interface TagData {
+        List<String> getTags(User u);
+        void setTags(User u, List<String> tags);
+
+        @Store.Append("tags")
+        void addTag(User u, String tag);
+
+        @Store.Remove("tags")
+        void removeTag(User u, String tag);
+    }
+
+    /**
+     * Counts its instances, to tell when the data interface is parsed.
+     */
+    public static class CountingConverter implements Store.Converter {
+        static int instances = 0;
+
+        public CountingConverter() {
+            instances++;
+        }
+
+        public Object intern(Object store, String val) {
+            return Integer.valueOf(val);
+        }
+
+        public String extern(Object store, Object val) {
+            return val.toString();
+        }
+    }
+
+    @Store.Info(converters = {
+        @Store.Convert(object = User.class, property = "score", convert = CountingConverter.class)
+    })
+    public interface TenantData {
+        Integer getScore(User u);
+        void setScore(User u, Integer score);
+    }
+
+    /**
+     * Written the way the annotation processor generates it.
+     */
+    public static class PrecompiledData extends Store.Precompiled implements Data {
+        public PrecompiledData() {
+            super(new Store.MethodSpec[] {
+                Store.MethodSpec.getter(User.class, "email", String.class),
+                Store.MethodSpec.setter(User.class, new String[] { "email" }, new Class[] { String.class })
+            }, new Store.ConverterSpec[0]);
+        }
+
+        public String getEmail(User u) {
+            return (String)invoke(0, new Object[] { u });
+        }
+
+        public void setEmail(User u, String email) {
+            invoke(1, new Object[] { u, email });
+        }
+    }
+
+    private MemoryBackend backend;
+
+    @Override
+    protected void setUp() {
+        backend = new MemoryBackend();
+    }
+
+    public void testProxyObjectMethods() {
+        Data data = Store.create(Data.class, backend, backend);
+        Data other = Store.create(Data.class, backend, backend);
+
+        assertTrue(data.equals(data));
+        assertFalse(data.equals(other));
+        assertFalse(data.equals(null));
+        assertEquals(System.identityHashCode(data), data.hashCode());
+        assertTrue(data.toString().startsWith(Data.class.getName() + "@"));
+    }
+
+    public void testPrecompiledStore() {
+        PrecompiledData data = Store.create(new PrecompiledData(), backend, backend);
+        User user = new User();
+
+        data.setEmail(user, "a@example.com");
+        assertEquals("a@example.com", data.getEmail(user));
+    }
+
+    public void testUnboundPrecompiledStore() {
+        try {
+            new PrecompiledData().getEmail(new User());
+            fail("unbound instance must not be usable");
+        } catch(Store.ConfigurationException e) {
+            // expected
+        }
+    }
+
+    public void testPrecompiledStoreIsBoundOnce() {
+        PrecompiledData data = Store.create(new PrecompiledData(), backend, backend);
+
+        try {
+            Store.create(data, backend, backend);
+            fail("instance must not be bound twice");
+        } catch(Store.ConfigurationException e) {
+            // expected
+        }
+    }
+
+    public void testListItems() {
+        TagData data = Store.create(TagData.class, backend, backend);
+        User user = new User();
+
+        data.addTag(user, "a");
+        data.addTag(user, "ab");
+        data.addTag(user, "b");
+        data.removeTag(user, "a");
+        assertEquals(Arrays.asList("ab", "b"), data.getTags(user));
+    }
+
+    public void testListItemWithNewlineIsRejected() {
+        TagData data = Store.create(TagData.class, backend, backend);
+        User user = new User();
+        data.addTag(user, "a");
+
+        try {
+            data.addTag(user, "b\nc");
+            fail("item would be read back as two items");
+        } catch(Store.BackendException e) {
+            // expected
+        }
+
+        try {
+            data.removeTag(user, "a\n");
+            fail("item would match across two items");
+        } catch(Store.BackendException e) {
+            // expected
+        }
+
+        assertEquals(Arrays.asList("a"), data.getTags(user));
+    }
+
+    public void testInterfaceModelIsShared() {
+        MemoryBackend otherBackend = new MemoryBackend();
+        TenantData data = Store.create(TenantData.class, backend, backend);
+        TenantData other = Store.create(TenantData.class, otherBackend, otherBackend);
+        for(int i = 0; i < 10; i++)
+            Store.create(TenantData.class, backend, backend);
+
+        // interface is parsed (and its converters created) only once
+        assertEquals(1, CountingConverter.instances);
+
+        // stores still keep their own backends
+        User user = new User();
+        data.setScore(user, 5);
+        other.setScore(user, 7);
+        assertEquals(Integer.valueOf(5), data.getScore(user));
+        assertEquals(Integer.valueOf(7), other.getScore(user));
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright 2011, Nick Matantsev
+ * Dual-licensed under the MIT or GPL Version 2 licenses.
+ */
+
+package org.fxrm.store.backend;
+
+import org.fxrm.store.Backend;
+import org.fxrm.store.MemoryBackend;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.CountDownLatch;
+import junit.framework.TestCase;
+
+public class CachingBackendTest extends TestCase {
+    public static class Account {
+    }
+
+    private MemoryBackend backend;
+    private Backend.Identity[] ids;
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        backend = new MemoryBackend();
+        Backend.Column email = backend.getSimpleColumn(Account.class, "email", String.class);
+
+        ids = new Backend.Identity[3];
+        for(int i = 0; i < ids.length; i++) {
+            ids[i] = backend.createIdentity(Account.class);
+            backend.set(ids[i], email, "user" + i + "@example.com");
+        }
+
+        file = File.createTempFile("fxrm-cache", ".snapshot");
+        file.delete();
+    }
+
+    @Override
+    protected void tearDown() {
+        file.delete();
+    }
+
+    public void testWriteInvalidates() throws Exception {
+        CachingBackend cache = new CachingBackend(backend, backend, 100);
+        Backend.Column col = cache.getSimpleColumn(Account.class, "email", String.class);
+
+        assertEquals("user0@example.com", cache.get(ids[0], col));
+        assertEquals("user0@example.com", cache.get(ids[0], col));
+        assertEquals(1, backend.gets);
+
+        cache.set(ids[0], col, "changed@example.com");
+        assertEquals("changed@example.com", cache.get(ids[0], col));
+        assertEquals(2, backend.gets);
+    }
+
+    public void testWriteDuringReadIsNotOverwritten() throws Exception {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch written = new CountDownLatch(1);
+        backend = new MemoryBackend() {
+            @Override
+            public Object get(Backend.Identity id, Backend.Column col) {
+                Object value = super.get(id, col);
+                if(reading.getCount() > 0) {
+                    reading.countDown();
+                    try {
+                        written.await();
+                    } catch(InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+
+                return value;
+            }
+        };
+
+        final CachingBackend cache = new CachingBackend(backend, backend, 100);
+        final Backend.Column col = cache.getSimpleColumn(Account.class, "email", String.class);
+        final Backend.Identity id = backend.createIdentity(Account.class);
+        cache.set(id, col, "old@example.com");
+
+        final Object[] stale = new Object[1];
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    stale[0] = cache.get(id, col);
+                } catch(Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        reader.start();
+
+        reading.await();
+        cache.set(id, col, "new@example.com");
+        written.countDown();
+        reader.join();
+
+        // read that started before the write returns the old value, but must not cache it
+        assertEquals("old@example.com", stale[0]);
+        assertEquals("new@example.com", cache.get(id, col));
+    }
+
+    public void testSnapshotRoundTrip() throws Exception {
+        CachingBackend cache = new CachingBackend(backend, backend, 100);
+        Backend.Column col = cache.getSimpleColumn(Account.class, "email", String.class);
+        for(int i = 0; i < 5; i++)
+            cache.get(ids[0], col);
+        cache.get(ids[1], col);
+        cache.get(ids[2], col);
+
+        // most-read properties first
+        assertEquals(2, cache.saveSnapshot(file, "v1", 2));
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        // new instance, with new column objects from the object mapping
+        CachingBackend restarted = new CachingBackend(backend, backend, 100);
+        assertEquals(2, restarted.loadSnapshot(file, "v1", 0));
+
+        int gets = backend.gets;
+        Backend.Column restartedCol = restarted.getSimpleColumn(Account.class, "email", String.class);
+        assertEquals("user0@example.com", restarted.get(ids[0], restartedCol));
+        assertEquals(gets, backend.gets);
+
+        // least-read property was not in the snapshot
+        assertEquals("user2@example.com", restarted.get(ids[2], restartedCol));
+        assertEquals(gets + 1, backend.gets);
+    }
+
+    public void testSnapshotOfOtherVersionIsIgnored() throws Exception {
+        CachingBackend cache = new CachingBackend(backend, backend, 100);
+        cache.get(ids[0], cache.getSimpleColumn(Account.class, "email", String.class));
+        cache.saveSnapshot(file, "v1", 10);
+
+        assertEquals(0, new CachingBackend(backend, backend, 100).loadSnapshot(file, "v2", 0));
+        assertEquals(0, new CachingBackend(backend, backend, 100).loadSnapshot(new File(file.getPath() + ".missing"), "v1", 0));
+    }
+
+    public void testCorruptSnapshotIsIgnored() throws Exception {
+        CachingBackend cache = new CachingBackend(backend, backend, 100);
+        Backend.Column col = cache.getSimpleColumn(Account.class, "email", String.class);
+        for(Backend.Identity id: ids)
+            cache.get(id, col);
+        cache.saveSnapshot(file, "v1", 10);
+
+        // flip a bit in the middle of the file
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long middle = raf.length() / 2;
+            raf.seek(middle);
+            int b = raf.read();
+            raf.seek(middle);
+            raf.write(b ^ 1);
+        } finally {
+            raf.close();
+        }
+
+        int gets = backend.gets;
+        assertEquals(0, new CachingBackend(backend, backend, 100).loadSnapshot(file, "v1", 0));
+        assertEquals(gets, backend.gets);
+
+        // truncated file
+        cache.saveSnapshot(file, "v1", 10);
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 3);
+        } finally {
+            raf.close();
+        }
+
+        assertEquals(0, new CachingBackend(backend, backend, 100).loadSnapshot(file, "v1", 0));
+    }
+}
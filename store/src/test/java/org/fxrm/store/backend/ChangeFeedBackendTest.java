@@ -0,0 +1,161 @@
+/**
+ * Copyright 2011, Nick Matantsev
+ * Dual-licensed under the MIT or GPL Version 2 licenses.
+ */
+
+package org.fxrm.store.backend;
+
+import org.fxrm.store.Backend;
+import org.fxrm.store.MemoryBackend;
+import org.fxrm.store.Store;
+import java.util.ArrayList;
+import junit.framework.TestCase;
+
+public class ChangeFeedBackendTest extends TestCase {
+    public static class User {
+    }
+
+    public interface Data {
+        String getEmail(User u);
+        void setEmail(User u, String email);
+    }
+
+    private MemoryBackend backend;
+
+    @Override
+    protected void setUp() {
+        backend = new MemoryBackend();
+    }
+
+    public void testChangesNameObjectClassAndProperty() {
+        ChangeFeedBackend feed = new ChangeFeedBackend(backend, backend, 16);
+        Data data = Store.create(Data.class, feed, feed);
+
+        data.setEmail(new User(), "a@example.com");
+
+        ChangeFeedBackend.Change create = feed.poll();
+        assertEquals(ChangeFeedBackend.Change.CREATE, create.type);
+        assertEquals(User.class, create.objectClass);
+        assertNull(create.propertyName);
+
+        ChangeFeedBackend.Change set = feed.poll();
+        assertEquals(ChangeFeedBackend.Change.SET, set.type);
+        assertSame(create.identity, set.identity);
+        assertEquals(User.class, set.objectClass);
+        assertEquals("email", set.propertyName);
+        assertEquals("a@example.com", set.value);
+
+        assertNull(feed.poll());
+    }
+
+    public void testOverflowDropsAndCountsChanges() throws Exception {
+        ChangeFeedBackend feed = new ChangeFeedBackend(backend, backend, 4);
+        Backend.Column col = feed.getSimpleColumn(User.class, "email", String.class);
+        Backend.Identity id = backend.createIdentity(User.class);
+
+        for(int i = 0; i < 6; i++)
+            feed.set(id, col, "v" + i);
+
+        assertEquals(2, feed.getDroppedCount());
+
+        ArrayList<ChangeFeedBackend.Change> changes = new ArrayList<ChangeFeedBackend.Change>();
+        assertEquals(4, feed.drain(changes, 10));
+        assertEquals("v0", changes.get(0).value);
+        assertEquals("v3", changes.get(3).value);
+
+        // drained slots are reused
+        feed.set(id, col, "v6");
+        assertEquals("v6", feed.poll().value);
+        assertEquals(2, feed.getDroppedCount());
+
+        // dropped changes were still written
+        assertEquals("v6", backend.get(id, MappedColumn.unwrap(col)));
+    }
+
+    public void testForeignColumnIsRejected() throws Exception {
+        ChangeFeedBackend feed = new ChangeFeedBackend(backend, backend, 4);
+        Backend.Column col = backend.getSimpleColumn(User.class, "email", String.class);
+
+        try {
+            feed.set(backend.createIdentity(User.class), col, "a@example.com");
+            fail("column of the decorated mapping must be rejected");
+        } catch(Store.ConfigurationException e) {
+            // expected
+        }
+    }
+
+    public void testSlowWriteDoesNotBlockOtherProperties() throws Exception {
+        final ChangeFeedBackend feed = new ChangeFeedBackend(backend, backend, 16);
+        final Backend.Column col = feed.getSimpleColumn(User.class, "email", String.class);
+        final Backend.Identity slowId = backend.createIdentity(User.class);
+        Backend.Identity otherId = backend.createIdentity(User.class);
+
+        backend.block("slow");
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    feed.set(slowId, col, "slow");
+                } catch(Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        writer.start();
+        backend.awaitBlocked();
+
+        // completes while the other write is still inside the backend
+        feed.set(otherId, col, "fast");
+        assertEquals("fast", feed.poll().value);
+
+        backend.unblock();
+        writer.join(5000);
+        assertFalse(writer.isAlive());
+        assertEquals("slow", feed.poll().value);
+    }
+
+    public void testSamePropertyWritesKeepCommitOrder() throws Exception {
+        final ChangeFeedBackend feed = new ChangeFeedBackend(backend, backend, 16);
+        final Backend.Column col = feed.getSimpleColumn(User.class, "email", String.class);
+        final Backend.Identity id = backend.createIdentity(User.class);
+
+        backend.block("first");
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    feed.set(id, col, "first");
+                } catch(Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        writer.start();
+        backend.awaitBlocked();
+
+        Thread batch = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    feed.setAll(new Backend.Identity[] { id }, new Backend.Column[] { col }, new Object[] { "second" });
+                } catch(Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        batch.start();
+
+        // the batch waits for the earlier write of the same property
+        batch.join(200);
+        assertTrue(batch.isAlive());
+        assertNull(feed.poll());
+
+        backend.unblock();
+        writer.join(5000);
+        batch.join(5000);
+
+        assertEquals("first", feed.poll().value);
+        assertEquals("second", feed.poll().value);
+        assertEquals("second", backend.get(id, MappedColumn.unwrap(col)));
+    }
+}
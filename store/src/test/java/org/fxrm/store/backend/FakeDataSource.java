@@ -0,0 +1,269 @@
+/**
+ * Copyright 2011, Nick Matantsev
+ * Dual-licensed under the MIT or GPL Version 2 licenses.
+ */
+
+package org.fxrm.store.backend;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.sql.DataSource;
+
+/**
+ * Scripted JDBC data source for backend tests, built from dynamic proxies. Records every executed statement
+ * along with its parameters, answers queries through a responder, and can hold statements until they are cancelled.
+ */
+public class FakeDataSource {
+    public static class Executed {
+        public final String sql;
+        public final List<Object> params;
+
+        private Executed(String sql, List<Object> params) {
+            this.sql = sql;
+            this.params = params;
+        }
+    }
+
+    /**
+     * Produces result rows for executed queries. Row values are in column order.
+     */
+    public interface Responder {
+        List<Object[]> rows(String sql, List<Object> params) throws SQLException;
+    }
+
+    public final List<Executed> executed = Collections.synchronizedList(new ArrayList<Executed>());
+    public final AtomicInteger connections = new AtomicInteger();
+    public final AtomicInteger openConnections = new AtomicInteger();
+    public final AtomicInteger cancels = new AtomicInteger();
+
+    public volatile Responder responder = null;
+
+    private final DataSource dataSource;
+    private final AtomicInteger lastId = new AtomicInteger();
+
+    // statements containing this text wait until cancelled (or until the text is cleared)
+    private volatile String blockedText = null;
+    private int blockedCount = 0; // guarded by this
+
+    public FakeDataSource() {
+        dataSource = (DataSource)proxy(DataSource.class, new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args) throws Throwable {
+                if(m.getName().equals("getConnection"))
+                    return connection();
+
+                return defaultValue(m);
+            }
+        });
+    }
+
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    public void block(String text) {
+        blockedText = text;
+    }
+
+    public synchronized void unblock() {
+        blockedText = null;
+        notifyAll();
+    }
+
+    /**
+     * Wait until the given number of statements are being held.
+     */
+    public synchronized void awaitBlocked(int count) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while(blockedCount < count) {
+            long left = end - System.currentTimeMillis();
+            if(left <= 0)
+                throw new IllegalStateException("statement was not blocked");
+
+            wait(left);
+        }
+    }
+
+    public List<String> getStatements() {
+        ArrayList<String> result = new ArrayList<String>();
+        synchronized(executed) {
+            for(Executed e: executed)
+                result.add(e.sql);
+        }
+
+        return result;
+    }
+
+    private static Object proxy(Class iface, InvocationHandler handler) {
+        return Proxy.newProxyInstance(FakeDataSource.class.getClassLoader(), new Class[] { iface }, handler);
+    }
+
+    private static Object defaultValue(Method m) {
+        Class type = m.getReturnType();
+        if(type == boolean.class)
+            return false;
+        else if(type == int.class)
+            return 0;
+        else if(type == long.class)
+            return 0L;
+        return null;
+    }
+
+    private Connection connection() {
+        connections.incrementAndGet();
+        openConnections.incrementAndGet();
+
+        final boolean[] closed = { false };
+        return (Connection)proxy(Connection.class, new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args) throws Throwable {
+                String name = m.getName();
+                if(name.equals("prepareStatement") || name.equals("prepareCall")) {
+                    if(closed[0])
+                        throw new SQLException("connection is closed");
+
+                    return statement((String)args[0]);
+                } else if(name.equals("close")) {
+                    if(!closed[0])
+                        openConnections.decrementAndGet();
+
+                    closed[0] = true;
+                    return null;
+                }
+
+                return defaultValue(m);
+            }
+        });
+    }
+
+    private PreparedStatement statement(final String sql) {
+        final TreeMap<Integer, Object> params = new TreeMap<Integer, Object>();
+        final ArrayList<List<Object>> batch = new ArrayList<List<Object>>();
+        final boolean[] cancelled = { false };
+        final List<Object[]>[] generated = new List[1];
+
+        return (PreparedStatement)proxy(CallableStatement.class, new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args) throws Throwable {
+                String name = m.getName();
+                if(name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer && !name.equals("setFetchSize")) {
+                    params.put((Integer)args[0], name.equals("setNull") ? null : args[1]);
+                    return null;
+                } else if(name.equals("addBatch")) {
+                    batch.add(new ArrayList<Object>(params.values()));
+                    params.clear();
+                    return null;
+                } else if(name.equals("executeBatch")) {
+                    int[] counts = new int[batch.size()];
+                    for(int i = 0; i < counts.length; i++) {
+                        executed.add(new Executed(sql, batch.get(i)));
+                        counts[i] = 1;
+                    }
+
+                    batch.clear();
+                    return counts;
+                } else if(name.equals("cancel")) {
+                    cancels.incrementAndGet();
+                    synchronized(FakeDataSource.this) {
+                        cancelled[0] = true;
+                        FakeDataSource.this.notifyAll();
+                    }
+                    return null;
+                } else if(name.equals("execute") || name.equals("executeQuery") || name.equals("executeUpdate")) {
+                    List<Object> values = new ArrayList<Object>(params.values());
+                    executed.add(new Executed(sql, values));
+                    hold(sql, cancelled);
+
+                    List<Object[]> rows = responder == null ? Collections.<Object[]>emptyList() : responder.rows(sql, values);
+                    if(name.equals("executeUpdate"))
+                        return 1;
+
+                    generated[0] = rows;
+                    if(name.equals("executeQuery"))
+                        return resultSet(rows);
+
+                    return true;
+                } else if(name.equals("getResultSet")) {
+                    return resultSet(generated[0]);
+                } else if(name.equals("getGeneratedKeys")) {
+                    return resultSet(Collections.singletonList(new Object[] { lastId.incrementAndGet() }));
+                }
+
+                return defaultValue(m);
+            }
+        });
+    }
+
+    private void hold(String sql, boolean[] cancelled) throws SQLException, InterruptedException {
+        String text = blockedText;
+        if(text == null || !sql.contains(text))
+            return;
+
+        synchronized(this) {
+            blockedCount++;
+            notifyAll();
+            try {
+                while(!cancelled[0] && blockedText != null)
+                    wait();
+            } finally {
+                blockedCount--;
+            }
+
+            // same SQLState as the MySQL driver uses
+            if(cancelled[0])
+                throw new SQLException("Statement cancelled due to client request", "70100");
+        }
+    }
+
+    private static ResultSet resultSet(final List<Object[]> rows) {
+        final int[] index = { -1 };
+        final boolean[] wasNull = { false };
+
+        return (ResultSet)proxy(ResultSet.class, new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args) throws Throwable {
+                String name = m.getName();
+                if(name.equals("next")) {
+                    index[0]++;
+                    return index[0] < rows.size();
+                } else if(name.equals("wasNull")) {
+                    return wasNull[0];
+                } else if(name.equals("getMetaData")) {
+                    return metaData(rows.isEmpty() ? 0 : rows.get(0).length);
+                } else if(name.equals("getInt") || name.equals("getLong") || name.equals("getString")) {
+                    Object value = rows.get(index[0])[(Integer)args[0] - 1];
+                    wasNull[0] = value == null;
+                    if(name.equals("getString"))
+                        return value == null ? null : value.toString();
+                    else if(name.equals("getInt"))
+                        return value == null ? 0 : ((Number)value).intValue();
+                    else
+                        return value == null ? 0L : ((Number)value).longValue();
+                }
+
+                return defaultValue(m);
+            }
+        });
+    }
+
+    private static ResultSetMetaData metaData(final int columns) {
+        return (ResultSetMetaData)proxy(ResultSetMetaData.class, new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args) throws Throwable {
+                if(m.getName().equals("getColumnCount"))
+                    return columns;
+                else if(m.getName().equals("getColumnLabel"))
+                    return "c" + args[0];
+
+                return defaultValue(m);
+            }
+        });
+    }
+}
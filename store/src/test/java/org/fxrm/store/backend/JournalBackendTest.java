@@ -0,0 +1,240 @@
+/**
+ * Copyright 2011, Nick Matantsev
+ * Dual-licensed under the MIT or GPL Version 2 licenses.
+ */
+
+package org.fxrm.store.backend;
+
+import org.fxrm.store.Backend;
+import org.fxrm.store.Store;
+import java.io.File;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+
+public class JournalBackendTest extends TestCase {
+    public static class Account {
+    }
+
+    /**
+     * Map-based backend with string identities, optionally failing every set or rejecting one value.
+     */
+    private static class MemoryBackend implements Backend, Store.ObjectMapping {
+        private final HashMap<String, Object> values = new HashMap<String, Object>();
+        private int lastId = 0;
+        private volatile boolean failing = false;
+        private volatile Object rejectedValue = null;
+
+        private static class IdentityImpl implements Identity {
+            private final String id;
+
+            private IdentityImpl(String id) {
+                this.id = id;
+            }
+
+            @Override
+            public int hashCode() {
+                return id.hashCode();
+            }
+
+            @Override
+            public boolean equals(Object obj) {
+                return obj instanceof IdentityImpl && ((IdentityImpl)obj).id.equals(this.id);
+            }
+        }
+
+        private static class ColumnImpl implements Column {
+            private final String name;
+
+            private ColumnImpl(String name) {
+                this.name = name;
+            }
+
+            @Override
+            public int hashCode() {
+                return name.hashCode();
+            }
+
+            @Override
+            public boolean equals(Object obj) {
+                return obj instanceof ColumnImpl && ((ColumnImpl)obj).name.equals(this.name);
+            }
+        }
+
+        private static String key(Identity id, Column col) {
+            return ((IdentityImpl)id).id + "." + ((ColumnImpl)col).name;
+        }
+
+        public synchronized Object get(Identity id, Column col) {
+            return values.get(key(id, col));
+        }
+
+        public synchronized void set(Identity id, Column col, Object value) throws Exception {
+            if(failing)
+                throw new Exception("backend is down");
+
+            if(value != null && value.equals(rejectedValue))
+                throw new SQLIntegrityConstraintViolationException("Duplicate entry '" + value + "'", "23000");
+
+            values.put(key(id, col), value);
+        }
+
+        public synchronized Collection<Identity> find(Column[] cols, Object[] args) {
+            String suffix = "." + ((ColumnImpl)cols[0]).name;
+
+            ArrayList<Identity> result = new ArrayList<Identity>();
+            for(Map.Entry<String, Object> e: values.entrySet()) {
+                if(e.getKey().endsWith(suffix) && args[0].equals(e.getValue()))
+                    result.add(new IdentityImpl(e.getKey().substring(0, e.getKey().length() - suffix.length())));
+            }
+
+            return result;
+        }
+
+        public Column getIdentityColumn(Object objectClass, String propertyName, Class referenceClass) {
+            return new ColumnImpl(propertyName);
+        }
+
+        public Column getSimpleColumn(Object objectClass, String propertyName, Class valueClass) {
+            return new ColumnImpl(propertyName);
+        }
+
+        public synchronized Identity createIdentity(Object objectClass) {
+            return new IdentityImpl(Integer.toString(++lastId));
+        }
+
+        public Identity intern(Object objectClass, Object externalId) {
+            return new IdentityImpl(externalId.toString());
+        }
+
+        public Object extern(Identity id) {
+            return ((IdentityImpl)id).id;
+        }
+    }
+
+    private File file;
+    private MemoryBackend backend;
+    private Backend.Column column;
+    private Backend.Identity id;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("fxrm-journal", ".log");
+        backend = new MemoryBackend();
+        column = backend.getSimpleColumn(Account.class, "email", String.class);
+        id = backend.createIdentity(Account.class);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    public void testReplayedSetIsNotRecoveredOverNewerWrite() throws Exception {
+        JournalBackend journal = new JournalBackend(backend, backend, file);
+        journal.set(id, journal.getSimpleColumn(Account.class, "email", String.class), "old");
+        awaitReplay(journal);
+
+        // another writer updates the property directly, then the process crashes without closing the journal
+        backend.set(id, column, "new");
+
+        JournalBackend recovered = new JournalBackend(backend, backend, file);
+        assertEquals("new", backend.get(id, column));
+
+        recovered.close();
+        journal.close();
+    }
+
+    public void testUnreplayedSetIsRecovered() throws Exception {
+        JournalBackend journal = new JournalBackend(backend, backend, file);
+        Backend.Column col = journal.getSimpleColumn(Account.class, "email", String.class);
+        journal.set(id, col, "first");
+        awaitReplay(journal);
+
+        backend.failing = true;
+        journal.set(id, col, "second");
+        assertEquals(1, journal.getPendingCount());
+
+        // earlier replay mark must not cover the later set; recover into another backend, since this one keeps failing
+        MemoryBackend other = new MemoryBackend();
+        JournalBackend recovered = new JournalBackend(other, other, file);
+        assertEquals("second", other.get(id, column));
+
+        recovered.close();
+        journal.close();
+    }
+
+    public void testRejectedSetDoesNotHoldBackReplay() throws Exception {
+        JournalBackend journal = new JournalBackend(backend, backend, file);
+        Backend.Column col = journal.getSimpleColumn(Account.class, "email", String.class);
+        Backend.Identity other = backend.createIdentity(Account.class);
+        Backend.Identity third = backend.createIdentity(Account.class);
+
+        backend.rejectedValue = "taken@example.com";
+        journal.setAll(new Backend.Identity[] { id, other, third }, new Backend.Column[] { col, col, col }, new Object[] { "a@example.com", "taken@example.com", "c@example.com" });
+
+        // finder waits for the replay, which must get past the rejected set
+        assertEquals(Arrays.asList(third), new ArrayList<Backend.Identity>(journal.find(new Backend.Column[] { col }, new Object[] { "c@example.com" })));
+        assertEquals(0, journal.getPendingCount());
+        assertEquals("a@example.com", backend.get(id, column));
+        assertNull(backend.get(other, column));
+        assertNull(journal.get(other, col));
+
+        List<JournalBackend.RejectedSet> rejected = journal.getRejectedSets();
+        assertEquals(1, rejected.size());
+        assertEquals(other, rejected.get(0).getIdentity());
+        assertEquals("taken@example.com", rejected.get(0).getValue());
+        assertTrue(rejected.get(0).getError() instanceof SQLIntegrityConstraintViolationException);
+        assertNull(journal.getReplayError());
+
+        // rejected set is done, so recovery does not try it again
+        backend.rejectedValue = null;
+        JournalBackend recovered = new JournalBackend(backend, backend, file);
+        assertNull(backend.get(other, column));
+        assertTrue(recovered.getRejectedSets().isEmpty());
+
+        recovered.close();
+        journal.close();
+    }
+
+    public void testFinderFailsWhileReplayIsFailing() throws Exception {
+        JournalBackend journal = new JournalBackend(backend, backend, file);
+        Backend.Column col = journal.getSimpleColumn(Account.class, "email", String.class);
+
+        backend.failing = true;
+        journal.set(id, col, "a@example.com");
+
+        try {
+            journal.find(new Backend.Column[] { col }, new Object[] { "a@example.com" });
+            fail("finder must not wait for a failing replay");
+        } catch(Store.BackendException e) {
+            assertEquals("backend is down", e.getCause().getMessage());
+        }
+
+        // transient failure is retried rather than rejected
+        assertTrue(journal.getRejectedSets().isEmpty());
+        assertEquals(1, journal.getPendingCount());
+
+        backend.failing = false;
+        awaitReplay(journal);
+        assertEquals("a@example.com", backend.get(id, column));
+        assertEquals(1, journal.find(new Backend.Column[] { col }, new Object[] { "a@example.com" }).size());
+
+        journal.close();
+    }
+
+    private static void awaitReplay(JournalBackend journal) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while(journal.getPendingCount() > 0) {
+            if(System.currentTimeMillis() > end)
+                fail("journal was not replayed");
+
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,369 @@
+/**
+ * Copyright 2011, Nick Matantsev
+ * Dual-licensed under the MIT or GPL Version 2 licenses.
+ */
+
+package org.fxrm.store.backend;
+
+import org.fxrm.store.Backend;
+import org.fxrm.store.Store;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import junit.framework.TestCase;
+
+public class MySQLBackendTest extends TestCase {
+    private FakeDataSource db;
+    private MySQLBackend backend;
+    private Backend.Column email;
+    private Backend.Column name;
+
+    @Override
+    protected void tearDown() {
+        db.unblock();
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        db = new FakeDataSource();
+        backend = new MySQLBackend(db.getDataSource());
+        email = backend.createSimpleColumn("user", "id", "email", String.class);
+        name = backend.createSimpleColumn("user", "id", "name", String.class);
+    }
+
+    public void testFindByValueAndNull() throws Exception {
+        backend.find(new Backend.Column[] { email, name }, new Object[] { "a@example.com", null });
+
+        assertEquals(Arrays.asList("select `id` from `user` where `email` = ? and `name` is null"), db.getStatements());
+        assertEquals(Arrays.<Object>asList("a@example.com"), db.executed.get(0).params);
+    }
+
+    public void testFindByCollection() throws Exception {
+        db.responder = rows(new Object[] { 1 }, new Object[] { 2 });
+
+        assertEquals(2, backend.find(new Backend.Column[] { email }, new Object[] { Arrays.asList("a", null, "b") }).size());
+        assertEquals(Arrays.asList("select `id` from `user` where (`email` in (?, ?) or `email` is null)"), db.getStatements());
+        assertEquals(Arrays.<Object>asList("a", "b"), db.executed.get(0).params);
+    }
+
+    public void testFindByEmptyCollection() throws Exception {
+        backend.find(new Backend.Column[] { email }, new Object[] { Collections.emptyList() });
+        assertEquals(Arrays.asList("select `id` from `user` where (0 = 1)"), db.getStatements());
+    }
+
+    public void testCountAndExists() throws Exception {
+        db.responder = rows(new Object[] { 3 });
+
+        assertEquals(3, backend.count(new Backend.Column[] { email }, new Object[] { "a" }));
+        assertTrue(backend.exists(new Backend.Column[] { email }, new Object[] { "a" }));
+        assertEquals(Arrays.asList(
+                "select count(*) from `user` where `email` = ?",
+                "select 1 from `user` where `email` = ? limit 1"), db.getStatements());
+    }
+
+    public void testLargeCollectionIsChunked() throws Exception {
+        // every chunk counts its own values
+        db.responder = new FakeDataSource.Responder() {
+            public List<Object[]> rows(String sql, List<Object> params) {
+                return Collections.singletonList(new Object[] { params.size() });
+            }
+        };
+
+        ArrayList<String> values = new ArrayList<String>();
+        for(int i = 0; i < 2500; i++)
+            values.add("v" + i);
+        values.add("v0"); // duplicates must not be counted twice
+        values.add(null);
+
+        assertEquals(2500, backend.count(new Backend.Column[] { email }, new Object[] { values }));
+        assertEquals(3, db.executed.size());
+        assertEquals(1000, db.executed.get(0).params.size());
+        assertEquals(500, db.executed.get(2).params.size());
+
+        // only one chunk matches nulls
+        int nullChecks = 0;
+        for(String sql: db.getStatements()) {
+            if(sql.contains("is null"))
+                nullChecks++;
+        }
+        assertEquals(1, nullChecks);
+    }
+
+    public void testGetAllIsChunked() throws Exception {
+        // every row has its ID as the value
+        db.responder = new FakeDataSource.Responder() {
+            public List<Object[]> rows(String sql, List<Object> params) {
+                ArrayList<Object[]> result = new ArrayList<Object[]>();
+                for(Object id: params)
+                    result.add(new Object[] { id, "v" + id });
+                return result;
+            }
+        };
+
+        Backend.Identity[] ids = new Backend.Identity[2500];
+        for(int i = 0; i < ids.length; i++)
+            ids[i] = backend.intern("user", Integer.toString(i + 1));
+
+        Object[] values = backend.getAll(ids, email);
+        assertEquals(3, db.executed.size());
+        assertEquals(1000, db.executed.get(0).params.size());
+        assertEquals(500, db.executed.get(2).params.size());
+        assertEquals("v1", values[0]);
+        assertEquals("v2500", values[2499]);
+    }
+
+    public void testSeveralLargeCollectionsAreRejected() throws Exception {
+        ArrayList<String> values = new ArrayList<String>();
+        for(int i = 0; i < 1001; i++)
+            values.add("v" + i);
+
+        try {
+            backend.find(new Backend.Column[] { email, name }, new Object[] { values, values });
+            fail("cross product of chunks is not supported");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+
+        assertEquals(0, db.executed.size());
+    }
+
+    public void testAppendAndRemove() throws Exception {
+        Backend.Column tags = backend.createSimpleColumn("user", "id", "tags", String.class);
+        Backend.Identity id = backend.intern("user", "7");
+
+        backend.append(id, tags, "a");
+        backend.remove(id, tags, "a");
+
+        assertEquals(Arrays.asList(
+                "update `user` set `tags` = concat(coalesce(`tags`, ''), ?) where `id` = ?",
+                "update `user` set `tags` = substring(insert(cast(concat(?, `tags`) as binary), locate(cast(? as binary), cast(concat(?, `tags`) as binary)), length(?), ?), 2) where `id` = ?"),
+                db.getStatements());
+        assertEquals(Arrays.<Object>asList("a\n", 7), db.executed.get(0).params);
+
+        // item is only matched as a whole line, and compared byte by byte
+        assertEquals(Arrays.<Object>asList("\n", "\na\n", "\n", "\na\n", "\n", 7), db.executed.get(1).params);
+    }
+
+    public void testScanIsPaged() throws Exception {
+        // table of 25000 rows, IDs 1 to 25000
+        db.responder = new FakeDataSource.Responder() {
+            public List<Object[]> rows(String sql, List<Object> params) {
+                ArrayList<Object[]> result = new ArrayList<Object[]>();
+                int first = Math.max(1, (Integer)params.get(0) + 1);
+                for(int id = first; id <= 25000 && result.size() < 10000; id++)
+                    result.add(new Object[] { id, "e" + id, null });
+                return result;
+            }
+        };
+
+        final int[] seen = { 0, 0 };
+        backend.scan(new Backend.Column[] { email, name }, new Backend.ScanHandler() {
+            public void row(Backend.Identity id, Object[] values) {
+                seen[0]++;
+                seen[1] = Integer.parseInt(backend.extern(id));
+                assertEquals("e" + seen[1], values[0]);
+                assertNull(values[1]);
+            }
+        });
+
+        assertEquals(25000, seen[0]);
+        assertEquals(25000, seen[1]);
+        assertEquals(3, db.executed.size());
+        assertEquals("select `id`, `email`, `name` from `user` where `id` > ? order by `id` limit 10000", db.executed.get(0).sql);
+        assertEquals(Arrays.<Object>asList(Integer.MIN_VALUE), db.executed.get(0).params);
+        assertEquals(Arrays.<Object>asList(10000), db.executed.get(1).params);
+        assertEquals(Arrays.<Object>asList(20000), db.executed.get(2).params);
+    }
+
+    public void testScanRequiresSingleTable() throws Exception {
+        Backend.Column other = backend.createSimpleColumn("account", "id", "email", String.class);
+
+        try {
+            backend.scan(new Backend.Column[] { email, other }, new Backend.ScanHandler() {
+                public void row(Backend.Identity id, Object[] values) {
+                    fail("no rows expected");
+                }
+            });
+            fail("columns of different tables cannot be scanned together");
+        } catch(Store.ConfigurationException e) {
+            // expected
+        }
+
+        assertEquals(0, db.executed.size());
+    }
+
+    public interface UserData {
+        String getEmail(User u);
+        void setEmail(User u, String email);
+    }
+
+    public static class User {
+    }
+
+    public void testScanRunsUnderDeadline() throws Exception {
+        UserData data = Store.create(UserData.class, backend, mapping(backend));
+        db.block("select `id`, `email`");
+
+        long start = System.currentTimeMillis();
+        try {
+            Store.scan(data, User.class, new String[] { "email" }, new Store.ScanHandler<User>() {
+                public void row(User user, Object[] values) {
+                    fail("no rows expected");
+                }
+            }, 200);
+            fail("scan should time out");
+        } catch(Store.TimeoutException e) {
+            // expected
+        }
+
+        assertTrue(System.currentTimeMillis() - start < 4000);
+        assertEquals(1, db.cancels.get());
+    }
+
+    public void testDeadlineCancelsStatement() throws Exception {
+        UserData data = Store.create(UserData.class, backend, mapping(backend), 200);
+        User user = Store.intern(data, User.class, "1");
+        db.block("select `email`");
+
+        try {
+            data.getEmail(user);
+            fail("read should time out");
+        } catch(Store.TimeoutException e) {
+            // expected
+        }
+
+        assertEquals(1, db.cancels.get());
+        assertEquals(0, db.openConnections.get());
+    }
+
+    public void testHedgeWinsOverSlowPrimary() throws Exception {
+        FakeDataSource replica = new FakeDataSource();
+        MySQLBackend hedged = new MySQLBackend(db.getDataSource(), replica.getDataSource(), 50);
+        Backend.Column col = hedged.createSimpleColumn("user", "id", "email", String.class);
+
+        db.block("select `email`");
+        replica.responder = rows(new Object[] { "a@example.com" });
+
+        assertEquals("a@example.com", hedged.get(hedged.intern("user", "1"), col));
+
+        // primary is cancelled once the hedge has the result
+        assertEquals(1, db.cancels.get());
+        assertEquals(0, replica.cancels.get());
+        assertEquals(0, db.openConnections.get());
+    }
+
+    public void testPrimaryWinsOverHedge() throws Exception {
+        FakeDataSource replica = new FakeDataSource();
+        MySQLBackend hedged = new MySQLBackend(db.getDataSource(), replica.getDataSource(), 50);
+        Backend.Column col = hedged.createSimpleColumn("user", "id", "email", String.class);
+
+        // primary completes while the hedge is still held
+        db.responder = new FakeDataSource.Responder() {
+            public List<Object[]> rows(String sql, List<Object> params) throws SQLException {
+                try {
+                    Thread.sleep(300);
+                } catch(InterruptedException e) {
+                    throw new SQLException(e);
+                }
+
+                return Collections.singletonList(new Object[] { "a@example.com" });
+            }
+        };
+        replica.block("select `email`");
+
+        assertEquals("a@example.com", hedged.get(hedged.intern("user", "1"), col));
+        assertEquals(1, replica.cancels.get());
+        assertEquals(0, db.cancels.get());
+    }
+
+    public void testDeadlineCancelsPrimaryAndHedge() throws Exception {
+        FakeDataSource replica = new FakeDataSource();
+        MySQLBackend hedged = new MySQLBackend(db.getDataSource(), replica.getDataSource(), 50);
+        UserData data = Store.create(UserData.class, hedged, mapping(hedged), 300);
+        User user = Store.intern(data, User.class, "1");
+
+        db.block("select `email`");
+        replica.block("select `email`");
+
+        try {
+            data.getEmail(user);
+            fail("read should time out");
+        } catch(Store.TimeoutException e) {
+            // expected
+        }
+
+        assertEquals(1, db.cancels.get());
+        assertEquals(1, replica.cancels.get());
+    }
+
+    public void testHedgeBudget() throws Exception {
+        FakeDataSource replica = new FakeDataSource();
+        MySQLBackend hedged = new MySQLBackend(db.getDataSource(), replica.getDataSource(), 1, 1);
+        Backend.Column col = hedged.createSimpleColumn("user", "id", "email", String.class);
+
+        // every read is slow enough for a hedge, but hedges beyond the initial burst must be earned
+        db.responder = new FakeDataSource.Responder() {
+            public List<Object[]> rows(String sql, List<Object> params) throws SQLException {
+                try {
+                    Thread.sleep(50);
+                } catch(InterruptedException e) {
+                    throw new SQLException(e);
+                }
+
+                return Collections.singletonList(new Object[] { "a@example.com" });
+            }
+        };
+        replica.block("select `email`");
+
+        for(int i = 0; i < 20; i++)
+            hedged.get(hedged.intern("user", "1"), col);
+
+        assertEquals(10, replica.executed.size());
+        assertEquals(10, replica.cancels.get());
+    }
+
+    /**
+     * Maps every identity class to the "user" table.
+     */
+    static Store.ObjectMapping mapping(final MySQLBackend backend) {
+        return new Store.ObjectMapping() {
+            public Backend.Column getIdentityColumn(Object objectClass, String propertyName, Class referenceClass) {
+                return backend.createIdentityColumn("user", "id", propertyName, referenceClass);
+            }
+
+            public Backend.Column getSimpleColumn(Object objectClass, String propertyName, Class valueClass) {
+                try {
+                    return backend.createSimpleColumn("user", "id", propertyName, valueClass);
+                } catch(NoSuchMethodException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            public Backend.Identity createIdentity(Object objectClass) {
+                try {
+                    return backend.createIdentity("user", "id");
+                } catch(Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            public Backend.Identity intern(Object objectClass, Object externalId) {
+                return backend.intern("user", externalId.toString());
+            }
+
+            public Object extern(Backend.Identity id) {
+                return backend.extern(id);
+            }
+        };
+    }
+
+    static FakeDataSource.Responder rows(final Object[]... rows) {
+        return new FakeDataSource.Responder() {
+            public List<Object[]> rows(String sql, List<Object> params) throws SQLException {
+                return Arrays.asList(rows);
+            }
+        };
+    }
+}
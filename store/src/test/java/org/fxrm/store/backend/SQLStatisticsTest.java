@@ -0,0 +1,139 @@
+/**
+ * Copyright 2011, Nick Matantsev
+ * Dual-licensed under the MIT or GPL Version 2 licenses.
+ */
+
+package org.fxrm.store.backend;
+
+import org.fxrm.store.Backend;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import junit.framework.TestCase;
+
+public class SQLStatisticsTest extends TestCase {
+    private FakeDataSource db;
+    private MySQLBackend backend;
+    private Backend.Column email;
+
+    @Override
+    protected void setUp() throws Exception {
+        db = new FakeDataSource();
+        backend = new MySQLBackend(db.getDataSource());
+        email = backend.createSimpleColumn("user", "id", "email", String.class);
+    }
+
+    @Override
+    protected void tearDown() {
+        db.unblock();
+    }
+
+    public void testShapeFolding() throws Exception {
+        assertEquals("select `id` from `user` where (`email` in (?, ...))", SQLStatistics.getShape("select `id` from `user` where (`email` in (?, ?, ?))"));
+        assertEquals("select `id` from `user` where `email` = ?", SQLStatistics.getShape("select `id` from `user` where `email` = ?"));
+
+        SQLStatistics stats = new SQLStatistics();
+        backend.setStatistics(stats);
+        db.responder = MySQLBackendTest.rows(new Object[] { 1 }, new Object[] { 2 });
+
+        backend.find(new Backend.Column[] { email }, new Object[] { Arrays.asList("a", "b") });
+        backend.find(new Backend.Column[] { email }, new Object[] { Arrays.asList("a", "b", "c") });
+
+        List<SQLStatistics.Entry> top = stats.getTop(10);
+        assertEquals(1, top.size());
+        assertEquals("select `id` from `user` where (`email` in (?, ...))", top.get(0).getSql());
+        assertEquals(2, top.get(0).getCount());
+        assertEquals(0, top.get(0).getFailures());
+        assertEquals(4, top.get(0).getRows());
+        assertNull(top.get(0).getExplain());
+    }
+
+    public void testFailuresAreCounted() throws Exception {
+        SQLStatistics stats = new SQLStatistics();
+        backend.setStatistics(stats);
+        db.responder = new FakeDataSource.Responder() {
+            public List<Object[]> rows(String sql, List<Object> params) throws SQLException {
+                throw new SQLException("table is gone");
+            }
+        };
+
+        try {
+            backend.count(new Backend.Column[] { email }, new Object[] { "a" });
+            fail("statement should fail");
+        } catch(SQLException e) {
+            // expected
+        }
+
+        SQLStatistics.Entry entry = stats.getTop(1).get(0);
+        assertEquals(1, entry.getCount());
+        assertEquals(1, entry.getFailures());
+    }
+
+    public void testSlowStatementIsExplainedOnceInBackground() throws Exception {
+        SQLStatistics stats = new SQLStatistics(1);
+        backend.setStatistics(stats);
+        db.responder = new FakeDataSource.Responder() {
+            public List<Object[]> rows(String sql, List<Object> params) {
+                if(sql.startsWith("explain "))
+                    return Collections.singletonList(new Object[] { "1", "SIMPLE" });
+
+                try {
+                    Thread.sleep(5);
+                } catch(InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+
+                return Collections.emptyList();
+            }
+        };
+
+        // EXPLAIN is held, but callers must not wait for it
+        db.block("explain ");
+
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        for(int i = 0; i < 4; i++) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for(int j = 0; j < 5; j++)
+                            backend.find(new Backend.Column[] { email }, new Object[] { "a" });
+                    } catch(Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+
+        for(Thread t: threads)
+            t.join(5000);
+
+        assertTrue(errors.isEmpty());
+        assertEquals(20, stats.getTop(1).get(0).getCount());
+
+        db.awaitBlocked(1);
+        db.unblock();
+
+        long end = System.currentTimeMillis() + 5000;
+        while(stats.getTop(1).get(0).getExplain() == null) {
+            if(System.currentTimeMillis() > end)
+                fail("plan was not captured");
+
+            Thread.sleep(10);
+        }
+
+        assertEquals("c1\tc2\n1\tSIMPLE\n", stats.getTop(1).get(0).getExplain());
+
+        int explains = 0;
+        for(String sql: db.getStatements()) {
+            if(sql.startsWith("explain "))
+                explains++;
+        }
+        assertEquals(1, explains);
+    }
+}